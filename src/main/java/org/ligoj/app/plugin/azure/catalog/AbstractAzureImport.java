@@ -3,17 +3,54 @@
  */
 package org.ligoj.app.plugin.azure.catalog;
 
-import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.TypedQuery;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Strings;
+import org.apache.commons.lang3.function.FailableRunnable;
+import org.apache.commons.lang3.function.TriConsumer;
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.hibernate.Session;
 import org.ligoj.app.plugin.azure.ProvAzurePluginResource;
 import org.ligoj.app.plugin.prov.catalog.AbstractImportCatalogResource;
+import org.ligoj.app.plugin.prov.model.AbstractPrice;
+import org.ligoj.app.plugin.prov.model.AbstractTermPrice;
 import org.ligoj.app.plugin.prov.model.ImportCatalogStatus;
 import org.ligoj.app.plugin.prov.model.ProvInstancePriceTerm;
 import org.ligoj.app.plugin.prov.model.ProvLocation;
+import org.ligoj.app.plugin.prov.model.VmOs;
+import org.ligoj.bootstrap.core.dao.RestRepository;
+import org.springframework.beans.factory.annotation.Autowired;
 
-import java.io.IOException;
-import java.util.Objects;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * The provisioning price service for Azure. Manage install or update of prices.<br>
@@ -43,6 +80,200 @@ public abstract class AbstractAzureImport extends AbstractImportCatalogResource
 	 */
 	protected static final String DEFAULT_API_PRICES_V2 = "https://azure.microsoft.com/api/v2/pricing";
 
+	/**
+	 * Configuration key prefix used to store the state of the last applied catalogs.
+	 */
+	protected static final String CONF_CATALOG_STATE = ProvAzurePluginResource.KEY + ":catalog-state:";
+
+	/**
+	 * Configuration key used to store the checkpoints of the running import. Removed once the import succeeds.
+	 */
+	protected static final String CONF_CHECKPOINTS = ProvAzurePluginResource.KEY + ":checkpoints";
+
+	/**
+	 * The SKU terms and their components.
+	 */
+	private static final TypeReference<Map<String, List<String>>> MAP_SKU_TERMS = new TypeReference<>() {
+		// Nothing to extend
+	};
+
+	/**
+	 * The checkpoints: catalog name to the settings and the hash of the applied content.
+	 */
+	private static final TypeReference<Map<String, String>> MAP_CHECKPOINTS = new TypeReference<>() {
+		// Nothing to extend
+	};
+
+	/**
+	 * The retrieval of the raw catalogs.
+	 */
+	@Autowired
+	protected CatalogFetcher fetcher;
+
+	/**
+	 * The phase transactions and the eviction of the persistence context.
+	 */
+	@Autowired
+	protected ImportTransactions transactions;
+
+	/**
+	 * The set based purge of the prices.
+	 */
+	@Autowired
+	protected KeptPricePurge keptPrices;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * Update the cost of the given price as needed and write it with the batched writer of the context.
+	 *
+	 * @param <T>        The price type.
+	 * @param context    The current import context.
+	 * @param entity     The price to update.
+	 * @param newCost    The new monthly cost.
+	 * @param repository The repository of this price.
+	 */
+	protected <T extends AbstractTermPrice<?>> void saveAsNeeded(final UpdateContext context, final T entity,
+			final double newCost, final RestRepository<T, Integer> repository) {
+		final var written = new MutableBoolean();
+		saveAsNeeded(context, entity, entity.getCost(), newCost, (cR, c) -> {
+			entity.setCost(cR);
+			entity.setCostPeriod(round3Decimals(c * Math.max(1, entity.getTerm().getPeriod())));
+		}, p -> {
+			written.setTrue();
+			if (p.isNew() || context.isForce() || em.contains(p)) {
+				context.getWriter().save(p, repository);
+			} else {
+				// A projection, the managed entity is loaded with the next batch
+				context.getWriter().saveCosts(p);
+			}
+		});
+		if (written.isFalse()) {
+			context.getMetrics().increment(PriceWriter.toPriceType(entity), ImportMetrics.UNCHANGED, 1);
+		}
+	}
+
+	/**
+	 * Move to the next step of the import, and time this step. All the steps of this import start here, so they are
+	 * all timed.
+	 *
+	 * @param context The current import context.
+	 * @param step    The step name.
+	 */
+	protected void startStep(final UpdateContext context, final String step) {
+		context.getMetrics().step(step);
+		super.nextStep(context, step);
+	}
+
+	/**
+	 * Purge the prices of a type and count the purged ones.
+	 *
+	 * @param context The current import context.
+	 * @param type    The price type name.
+	 * @param count   The count of the prices of this type.
+	 * @param purge   The purge.
+	 */
+	protected void purge(final UpdateContext context, final String type, final LongSupplier count,
+			final Runnable purge) {
+		final var before = count.getAsLong();
+		purge.run();
+		context.getMetrics().increment(type, ImportMetrics.PURGED, before - count.getAsLong());
+	}
+
+	/**
+	 * Return the previous prices of the node, by code. Out of force mode, the attributes of the previous prices are not
+	 * updated, so only a projection is loaded: identifier, code, costs and term. The managed entity is loaded only when
+	 * a cost changes.
+	 *
+	 * @param <T>        The price type.
+	 * @param context    The current import context.
+	 * @param type       The price entity type.
+	 * @param factory    The price factory used for the projections.
+	 * @param filter     The JPQL filter of the prices, the price alias is <code>p</code>.
+	 * @param parameters The positional parameters of the filter.
+	 * @return The previous prices by code.
+	 */
+	protected <T extends AbstractTermPrice<?>> Map<String, T> loadPrevious(final UpdateContext context,
+			final Class<T> type, final Supplier<T> factory, final String filter, final Object... parameters) {
+		final var from = " FROM " + type.getSimpleName() + " p WHERE " + filter;
+		if (context.isForce()) {
+			// All attributes are updated, the managed entities are needed
+			final var query = em.createQuery("SELECT p" + from, type);
+			setParameters(query, parameters);
+			return query.getResultList().stream()
+					.collect(Collectors.toConcurrentMap(AbstractPrice::getCode, Function.identity()));
+		}
+		final var query = em.createQuery("SELECT p.id, p.code, p.cost, p.costPeriod, p.term.id" + from,
+				Object[].class);
+		setParameters(query, parameters);
+		// The terms of the node are already loaded by the context
+		final var terms = context.getPriceTerms().values().stream()
+				.collect(Collectors.toMap(ProvInstancePriceTerm::getId, Function.identity(), (t1, t2) -> t1));
+		final var result = new ConcurrentHashMap<String, T>();
+		query.getResultList().forEach(r -> {
+			final var price = factory.get();
+			price.setId((Integer) r[0]);
+			price.setCode((String) r[1]);
+			price.setCost((Double) r[2]);
+			price.setCostPeriod((Double) r[3]);
+			price.setTerm(terms.computeIfAbsent((Integer) r[4], id -> em.find(ProvInstancePriceTerm.class, id)));
+			result.put(price.getCode(), price);
+		});
+		return result;
+	}
+
+	/**
+	 * Return the previous price of the given key, or a new price. A previous price released by an eviction once written
+	 * is loaded again, so a price written twice by an import is updated instead of being inserted twice.
+	 *
+	 * @param <K>      The key type.
+	 * @param <T>      The price type.
+	 * @param context  The current import context.
+	 * @param previous The previous prices.
+	 * @param key      The price key in the previous prices.
+	 * @param code     The price code.
+	 * @param type     The price entity type.
+	 * @param factory  The new price factory.
+	 * @return The previous or the new price.
+	 */
+	protected <K, T extends AbstractPrice<?>> T getPrevious(final UpdateContext context, final Map<K, T> previous,
+			final K key, final String code, final Class<T> type, final Supplier<T> factory) {
+		return previous.computeIfAbsent(key, k -> {
+			final var id = context.getReleased(type).remove(code);
+			return id == null ? factory.get() : em.find(type, id);
+		});
+	}
+
+	/**
+	 * Replace the projections of the previous prices not written by this import by their managed entity, so the purge
+	 * deletes complete entities. The written prices are left as is.
+	 *
+	 * @param <T>      The price type.
+	 * @param context  The current import context.
+	 * @param previous The previous prices by code, updated in place.
+	 * @return The given previous prices.
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T extends AbstractPrice<?>> Map<String, T> attachRetired(final UpdateContext context,
+			final Map<String, T> previous) {
+		final var current = em.unwrap(Session.class);
+		previous.values().stream()
+				.filter(p -> !p.isNew() && !context.getPrices().contains(p.getCode()) && !em.contains(p))
+				.collect(Collectors.groupingBy(Object::getClass, Collectors.mapping(AbstractPrice::getId,
+						Collectors.toList())))
+				.forEach((type, ids) -> current.byMultipleIds(type).withBatchSize(context.getWriter().getBatchSize())
+						.multiLoad(ids).stream().filter(Objects::nonNull)
+						.forEach(m -> previous.put(((AbstractPrice<?>) m).getCode(), (T) m)));
+		return previous;
+	}
+
+	private void setParameters(final TypedQuery<?> query, final Object... parameters) {
+		for (var i = 0; i < parameters.length; i++) {
+			query.setParameter(i + 1, parameters[i]);
+		}
+	}
+
 	/**
 	 * Indicate the given region is enabled.
 	 *
@@ -54,6 +285,102 @@ public abstract class AbstractAzureImport extends AbstractImportCatalogResource
 		return isEnabledRegion(context, region.getId());
 	}
 
+	/**
+	 * Indicate the given region is enabled, without evaluating again the regions filter.
+	 *
+	 * @param context The current import context.
+	 * @param region  The region API name to test.
+	 * @return <code>true</code> when the configuration enable the given region.
+	 */
+	protected boolean isEnabledRegion(final UpdateContext context, final String region) {
+		final var id = context.getRegionIndex().getId(region);
+		return id >= 0 ? isEnabledRegion(context, id) : super.isEnabledRegion(context, region);
+	}
+
+	/**
+	 * Indicate the given region is enabled, without evaluating again the regions filter.
+	 *
+	 * @param context The current import context.
+	 * @param region  The region identifier to test.
+	 * @return <code>true</code> when the configuration enable the given region.
+	 */
+	protected boolean isEnabledRegion(final UpdateContext context, final int region) {
+		if (region < context.getEvaluatedRegions()) {
+			return context.getEnabledRegions().get(region);
+		}
+		// Region discovered after the initialization
+		return context.getLateRegions().computeIfAbsent(region,
+				r -> super.isEnabledRegion(context, context.getRegionIndex().getName(r)));
+	}
+
+	/**
+	 * Evaluate once the regions filter against all known regions.
+	 *
+	 * @param context The current import context.
+	 */
+	protected void initEnabledRegions(final UpdateContext context) {
+		final var regions = context.getRegionIndex();
+		final var size = regions.size();
+		final var enabled = new BitSet(size);
+		for (var region = 0; region < size; region++) {
+			if (super.isEnabledRegion(context, regions.getName(region))) {
+				enabled.set(region);
+			}
+		}
+		context.setEnabledRegions(enabled);
+		context.setEvaluatedRegions(size);
+		context.getLateRegions().clear();
+	}
+
+	/**
+	 * Indicate the given instance type is enabled, evaluating the filter once per code.
+	 *
+	 * @param context The current import context.
+	 * @param type    The instance type code to test.
+	 * @return <code>true</code> when the configuration enable the given instance type.
+	 */
+	protected boolean isEnabledType(final UpdateContext context, final String type) {
+		return getFilter(context, "type").computeIfAbsent(type, t -> super.isEnabledType(context, t));
+	}
+
+	/**
+	 * Indicate the given OS is enabled, evaluating the filter once per OS.
+	 *
+	 * @param context The current import context.
+	 * @param os      The OS to test.
+	 * @return <code>true</code> when the configuration enable the given OS.
+	 */
+	protected boolean isEnabledOs(final UpdateContext context, final VmOs os) {
+		return getFilter(context, "os").computeIfAbsent(os.name(), o -> super.isEnabledOs(context, os));
+	}
+
+	/**
+	 * Indicate the given database engine is enabled, evaluating the filter once per engine.
+	 *
+	 * @param context The current import context.
+	 * @param engine  The database engine to test.
+	 * @return <code>true</code> when the configuration enable the given database engine.
+	 */
+	protected boolean isEnabledEngine(final UpdateContext context, final String engine) {
+		return getFilter(context, "engine").computeIfAbsent(engine, e -> super.isEnabledEngine(context, e));
+	}
+
+	/**
+	 * Indicate the given database type is enabled, evaluating the filter once per code.
+	 *
+	 * @param context The current import context.
+	 * @param type    The database type code to test.
+	 * @return <code>true</code> when the configuration enable the given database type.
+	 */
+	protected boolean isEnabledDatabaseType(final UpdateContext context, final String type) {
+		return getFilter(context, "database-type").computeIfAbsent(type,
+				t -> super.isEnabledDatabaseType(context, t));
+	}
+
+	private Map<String, Boolean> getFilter(final UpdateContext context, final String filter) {
+		return context.getFilters().computeIfAbsent(filter, f -> new ConcurrentHashMap<>());
+	}
+
 	/**
 	 * Install or update prices.
 	 *
@@ -62,55 +389,428 @@ public abstract class AbstractAzureImport extends AbstractImportCatalogResource
 	 */
 	public abstract void install(UpdateContext context) throws IOException;
 
+	/**
+	 * Start the retrieval of the catalogs used by this importer in background. The retrieved catalogs are consumed by
+	 * {@link #install(UpdateContext)} instead of being downloaded again.
+	 *
+	 * @param context  The current import context.
+	 * @param executor The executor running the downloads.
+	 */
+	public void prefetch(final UpdateContext context, final Executor executor) {
+		// No prefetch by default
+	}
+
+	/**
+	 * Start the retrieval and the parsing of a catalog in background.
+	 *
+	 * @param context  The current import context.
+	 * @param url      The catalog URL.
+	 * @param type     The catalog type.
+	 * @param executor The executor running the download.
+	 * @param <P>      The catalog type.
+	 */
+	protected <P extends AbstractAzurePrice<?>> void prefetch(final UpdateContext context, final String url,
+			final Class<P> type, final Executor executor) {
+		// The previous state and the settings are read from the current thread
+		final var previous = getCatalogState(context, url);
+		final var settings = getCatalogSettings();
+		context.getCatalogs().computeIfAbsent(url, u -> CompletableFuture.supplyAsync(() -> {
+			try {
+				return readCatalog(context, u, type, settings, previous);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor));
+	}
+
+	/**
+	 * Return the catalog from the given URL. When this catalog has been prefetched, the background result is used.
+	 *
+	 * @param context The current import context.
+	 * @param url     The catalog URL.
+	 * @param type    The catalog type.
+	 * @param <P>     The catalog type.
+	 * @return The retrieved catalog, not parsed when unchanged since the last applied one.
+	 * @throws IOException When prices cannot be remotely read.
+	 */
+	@SuppressWarnings("unchecked")
+	protected <P extends AbstractAzurePrice<?>> Catalog<P> getCatalog(final UpdateContext context, final String url,
+			final Class<P> type) throws IOException {
+		final var prefetched = context.getCatalogs().remove(url);
+		if (prefetched == null) {
+			return readCatalog(context, url, type, getCatalogSettings(), getCatalogState(context, url));
+		}
+		return (Catalog<P>) awaitCatalog(url, prefetched);
+	}
+
+	/**
+	 * Wait for a prefetched catalog.
+	 */
+	private Catalog<?> awaitCatalog(final String url, final CompletableFuture<? extends Catalog<?>> prefetched)
+			throws IOException {
+		try {
+			return prefetched.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted retrieval of " + url, e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException ioe) {
+				throw ioe.getCause();
+			}
+			throw new IOException("Unable to retrieve " + url, e.getCause());
+		}
+	}
+
+	/**
+	 * Download and parse a catalog.
+	 */
+	private <P extends AbstractAzurePrice<?>> Catalog<P> readCatalog(final UpdateContext context, final String url,
+			final Class<P> type, final String settings, final CatalogState previous) throws IOException {
+		try (var stream = fetcher.openCatalog(context, url, settings, previous)) {
+			if (isApplied(context, stream)) {
+				return new Catalog<>(stream.getState(), true, null);
+			}
+			final var start = System.currentTimeMillis();
+			final P prices = newReader(context, type).readValue(stream.getInput());
+			context.getMetrics().getPayload(url).setParseTime(System.currentTimeMillis() - start);
+			return new Catalog<>(stream.getState(), false, prices);
+		}
+	}
+
+	/**
+	 * Return a catalog reader sharing the region identifiers of the current import.
+	 */
+	private ObjectReader newReader(final UpdateContext context, final Class<?> type) {
+		return objectMapper.readerFor(type).withAttribute(RegionIndex.class, context.getRegionIndex());
+	}
+
+	/**
+	 * Stream the catalog from the given URL without building the SKU map. The SKUs are handled one by one as soon as
+	 * they are read, once the required header properties are known. When a required property is located after the
+	 * SKUs, the SKUs are buffered as tokens and handled at the end of the stream.
+	 *
+	 * @param context  The current import context.
+	 * @param url      The catalog URL.
+	 * @param type     The catalog type.
+	 * @param header   The catalog properties required before handling the first SKU.
+	 * @param prepare  The catalog preparation, called once before the first SKU.
+	 * @param consumer The SKU consumer receiving the catalog, the SKU name and its terms.
+	 * @param <P>      The catalog type.
+	 * @return The retrieved catalog. When unchanged since the last applied one, nothing is called.
+	 * @throws IOException When prices cannot be remotely read.
+	 */
+	protected <P extends AbstractAzurePrice<?>> Catalog<P> streamPrices(final UpdateContext context,
+			final String url, final Class<P> type, final Collection<String> header, final Consumer<P> prepare,
+			final TriConsumer<P, String, Map<String, List<String>>> consumer) throws IOException {
+		if (context.getCatalogs().containsKey(url)) {
+			// Already retrieved catalog
+			final var catalog = getCatalog(context, url, type);
+			if (!catalog.isUnchanged()) {
+				final var prices = catalog.getPrices();
+				prepare.accept(prices);
+				prices.getSkus().forEach((sku, terms) -> consumer.accept(prices, sku, terms));
+			}
+			return catalog;
+		}
+
+		try (var stream = fetcher.openCatalog(context, url, getCatalogSettings(), getCatalogState(context, url))) {
+			if (isApplied(context, stream)) {
+				return new Catalog<>(stream.getState(), true, null);
+			}
+			return new Catalog<>(stream.getState(), false,
+					streamPrices(context, stream.getInput(), type, header, prepare, consumer));
+		}
+	}
+
+	/**
+	 * Stream the catalog content.
+	 */
+	private <P extends AbstractAzurePrice<?>> P streamPrices(final UpdateContext context, final InputStream input,
+			final Class<P> type, final Collection<String> header, final Consumer<P> prepare,
+			final TriConsumer<P, String, Map<String, List<String>>> consumer) throws IOException {
+		try (var parser = objectMapper.createParser(input)) {
+			final var buffer = new TokenBuffer(parser);
+			final var read = new HashSet<String>();
+			TokenBuffer skus = null;
+			P prices = null;
+			buffer.writeStartObject();
+			if (parser.nextToken() == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					final var name = parser.currentName();
+					parser.nextToken();
+					if (prices != null) {
+						// Header is complete, remaining properties are useless
+						parser.skipChildren();
+					} else if ("skus".equals(name) && read.containsAll(header)) {
+						// Header is complete, stream the SKUs
+						context.getMetrics().increment("catalogs-streamed", 1);
+						prices = toPrices(context, buffer, type);
+						prepare.accept(prices);
+						readSkus(parser, prices, consumer);
+					} else if ("skus".equals(name)) {
+						// Header is not yet complete, buffer the SKUs
+						context.getMetrics().increment("catalogs-buffered", 1);
+						skus = new TokenBuffer(parser);
+						skus.copyCurrentStructure(parser);
+					} else {
+						read.add(name);
+						buffer.writeFieldName(name);
+						buffer.copyCurrentStructure(parser);
+					}
+				}
+			}
+
+			if (prices == null) {
+				// SKUs were not streamed
+				prices = toPrices(context, buffer, type);
+				prepare.accept(prices);
+				if (skus != null) {
+					try (var skusParser = skus.asParser(objectMapper)) {
+						skusParser.nextToken();
+						readSkus(skusParser, prices, consumer);
+					}
+				}
+			}
+			return prices;
+		}
+	}
+
+	/**
+	 * Build the catalog from the buffered header properties.
+	 */
+	private <P extends AbstractAzurePrice<?>> P toPrices(final UpdateContext context, final TokenBuffer buffer,
+			final Class<P> type) throws IOException {
+		buffer.writeEndObject();
+		try (var parser = buffer.asParser(objectMapper)) {
+			return newReader(context, type).readValue(parser);
+		}
+	}
+
+	/**
+	 * Read the SKUs one by one from a parser located on the start of the SKU object.
+	 */
+	private <P> void readSkus(final JsonParser parser, final P prices,
+			final TriConsumer<P, String, Map<String, List<String>>> consumer) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final var sku = parser.currentName();
+			parser.nextToken();
+			consumer.accept(prices, sku, objectMapper.readValue(parser, MAP_SKU_TERMS));
+		}
+	}
+
+	/**
+	 * Return the settings of this importer changing the installed prices of a catalog, such as the regions filter. A
+	 * catalog is never skipped when these settings differ from the last applied ones.
+	 *
+	 * @return The settings of this importer.
+	 */
+	protected String getCatalogSettings() {
+		return "regions=" + configuration.get(AzurePriceImportBase.CONF_REGIONS, ".*");
+	}
+
+	/**
+	 * Return the state of the last applied catalog from the given URL. This state is ignored in force mode, and when
+	 * the URL or the settings have changed.
+	 *
+	 * @param context The current import context.
+	 * @param url     The catalog URL.
+	 * @return The state of the last applied catalog. <code>null</code> when this catalog has to be fully installed.
+	 */
+	protected CatalogState getCatalogState(final UpdateContext context, final String url) {
+		final var value = configuration.get(CONF_CATALOG_STATE + CatalogFetcher.toCatalogName(url));
+		if (context.isForce() || value == null) {
+			return null;
+		}
+		try {
+			final var state = objectMapper.readValue(value, CatalogState.class);
+			return url.equals(state.getUrl()) && getCatalogSettings().equals(state.getSettings()) ? state : null;
+		} catch (final IOException e) {
+			log.warn("Ignored invalid state of catalog {}", url, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Indicate the given catalog is already applied: not modified since the last import, or with the same content than
+	 * the one applied by the checkpoint of an interrupted import. A checkpoint is used even in force mode.
+	 */
+	private boolean isApplied(final UpdateContext context, final CatalogStream stream) {
+		final var state = stream.getState();
+		if (stream.isUnchanged()) {
+			return true;
+		}
+		if (state != null && toCheckpoint(state).equals(context.getCheckpoints().get(state.getName()))) {
+			log.info("Catalog {} already applied by the interrupted import", state.getName());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicate the given catalog has been applied by the interrupted import being resumed, so the phases depending on
+	 * this catalog may not have been completed.
+	 *
+	 * @param context The current import context.
+	 * @param catalog The retrieved catalog.
+	 * @return <code>true</code> when this catalog has a checkpoint.
+	 */
+	protected boolean isResumed(final UpdateContext context, final Catalog<?> catalog) {
+		final var state = catalog.getState();
+		return state != null && context.getCheckpoints().containsKey(state.getName());
+	}
+
+	/**
+	 * Keep the previous prices of an unchanged catalog, so they are not purged.
+	 *
+	 * @param context  The current import context.
+	 * @param type     The price type name.
+	 * @param previous The kept prices.
+	 */
+	protected void keepPrices(final UpdateContext context, final String type,
+			final Collection<? extends AbstractPrice<?>> previous) {
+		previous.forEach(p -> context.getPrices().add(p.getCode()));
+		context.getMetrics().increment(type, ImportMetrics.UNCHANGED, previous.size());
+	}
+
+	/**
+	 * Return the checkpoint of an applied catalog: the settings and the hash of the content.
+	 */
+	private String toCheckpoint(final CatalogState state) {
+		return state.getSettings() + "@" + state.getHash();
+	}
+
+	/**
+	 * Load the checkpoints of the previous import. There is no checkpoint when the previous import succeeded.
+	 *
+	 * @param context The current import context.
+	 * @throws IOException When the checkpoints cannot be read.
+	 */
+	protected void loadCheckpoints(final UpdateContext context) throws IOException {
+		final var value = configuration.get(CONF_CHECKPOINTS);
+		if (value != null) {
+			context.getCheckpoints().putAll(objectMapper.readValue(value, MAP_CHECKPOINTS));
+			log.info("Resume the interrupted import, completed catalogs: {}", context.getCheckpoints().keySet());
+		}
+	}
+
+	/**
+	 * Complete the phase of an applied catalog. The state is saved so the next import skips this catalog while it is
+	 * not changed. A checkpoint is recorded so a retry of this import, when interrupted, does not install this catalog
+	 * again.
+	 *
+	 * @param context The current import context.
+	 * @param catalog The applied catalog.
+	 * @throws IOException When the state cannot be serialized.
+	 */
+	protected void completeCatalog(final UpdateContext context, final Catalog<?> catalog) throws IOException {
+		final var state = catalog.getState();
+		if (state != null) {
+			configuration.put(CONF_CATALOG_STATE + state.getName(), objectMapper.writeValueAsString(state));
+			context.getCheckpoints().put(state.getName(), toCheckpoint(state));
+			configuration.put(CONF_CHECKPOINTS, objectMapper.writeValueAsString(context.getCheckpoints()));
+		}
+	}
+
+	/**
+	 * Publish a staged catalog: the prefetched catalogs are all retrieved before the first write, then the given
+	 * installation runs in a single new transaction. A failed retrieval leaves the previous catalog untouched, and the
+	 * new catalog is visible only once entirely installed.
+	 *
+	 * @param context The current import context.
+	 * @param install The installation of the prices.
+	 * @throws IOException When prices cannot be remotely read.
+	 */
+	public void publish(final UpdateContext context, final FailableRunnable<IOException> install) throws IOException {
+		final var start = System.currentTimeMillis();
+		for (final var url : context.getCatalogs().keySet()) {
+			awaitCatalog(url, context.getCatalogs().get(url));
+		}
+		log.info("Azure catalogs staged in {}ms, publishing", System.currentTimeMillis() - start);
+		transactions.runTransaction(() -> {
+			context.getWriter().attach();
+			install.run();
+			context.getWriter().flush();
+		});
+	}
+
 	@Override
 	protected int getWorkload(final ImportCatalogStatus status) {
 		return 44; // 1 (global) region, 3 disk, 4 engine x3 phases, 1 support, 3 tiers x3 phases x3 VM term
 	}
 
 	/**
-	 * Install a new region.<br>
+	 * Install the given regions as needed. The new and the updated regions are written in a single batch.<br>
 	 * Also see CLI2 command <code>az account list-locations</code>
 	 *
 	 * @param context The current import context.
-	 * @param region  The region bundled code and human name to install as needed.
-	 * @return The previous or the new installed region.
+	 * @param regions The region bundled codes and human names to install as needed.
 	 */
-	protected ProvLocation installRegion(final UpdateContext context, final NamedResource region) {
-		return installRegion(context, region.getId(), region.getName());
+	protected void installRegions(final UpdateContext context, final Collection<NamedResource> regions) {
+		final var changed = new ArrayList<ProvLocation>();
+		regions.stream().filter(r -> !context.getMergedRegions().containsKey(r.getId())).forEach(r -> {
+			final var entity = context.getRegions().computeIfAbsent(r.getId(), n -> {
+				final var newRegion = new ProvLocation();
+				newRegion.setNode(context.getNode());
+				newRegion.setName(n);
+				return newRegion;
+			});
+
+			// Update the location details as needed
+			final var regionStats = context.getMapRegionById().getOrDefault(r.getId(), new ProvLocation());
+			if (entity.isNew() || context.isForce() || !isSameRegion(entity, regionStats, r.getName())) {
+				entity.setContinentM49(regionStats.getContinentM49());
+				entity.setCountryM49(regionStats.getCountryM49());
+				entity.setCountryA2(regionStats.getCountryA2());
+				entity.setPlacement(regionStats.getPlacement());
+				entity.setRegionM49(regionStats.getRegionM49());
+				entity.setSubRegion(regionStats.getSubRegion());
+				entity.setLatitude(regionStats.getLatitude());
+				entity.setLongitude(regionStats.getLongitude());
+				entity.setDescription(r.getName());
+				changed.add(entity);
+			}
+			context.getMergedRegions().put(r.getId(), entity);
+		});
+		if (!changed.isEmpty()) {
+			locationRepository.saveAll(changed);
+			locationRepository.flush();
+		}
 	}
 
 	/**
-	 * Install a new region as needed.<br>
-	 * Also see CLI2 command <code>az account list-locations</code>
+	 * Indicate the given location already matches the statistics and the human name.
+	 */
+	private boolean isSameRegion(final ProvLocation entity, final ProvLocation stats, final String name) {
+		return Objects.equals(entity.getContinentM49(), stats.getContinentM49())
+				&& Objects.equals(entity.getCountryM49(), stats.getCountryM49())
+				&& Objects.equals(entity.getCountryA2(), stats.getCountryA2())
+				&& Objects.equals(entity.getPlacement(), stats.getPlacement())
+				&& Objects.equals(entity.getRegionM49(), stats.getRegionM49())
+				&& Objects.equals(entity.getSubRegion(), stats.getSubRegion())
+				&& Objects.equals(entity.getLatitude(), stats.getLatitude())
+				&& Objects.equals(entity.getLongitude(), stats.getLongitude())
+				&& Objects.equals(entity.getDescription(), name);
+	}
+
+	/**
+	 * Return an installed region. The regions of a catalog are installed by {@link #commonPreparation}, so this
+	 * lookup does not write anything in the price loops.
 	 *
 	 * @param context The current import context.
-	 * @param region  The region code to install as needed.
-	 * @param name    The region human name.
+	 * @param region  The region code.
+	 * @param name    The region human name, used only when this region has not been installed yet.
 	 * @return The previous or the new installed region.
 	 */
 	protected ProvLocation installRegion(final UpdateContext context, final String region, final String name) {
-		final var entity = context.getRegions().computeIfAbsent(region, r -> {
-			final var newRegion = new ProvLocation();
-			newRegion.setNode(context.getNode());
-			newRegion.setName(region);
-			return newRegion;
-		});
-
-		// Update the location details as needed
-		return context.getMergedRegions().computeIfAbsent(region, r -> {
-			final var regionStats = context.getMapRegionById().getOrDefault(r, new ProvLocation());
-			entity.setContinentM49(regionStats.getContinentM49());
-			entity.setCountryM49(regionStats.getCountryM49());
-			entity.setCountryA2(regionStats.getCountryA2());
-			entity.setPlacement(regionStats.getPlacement());
-			entity.setRegionM49(regionStats.getRegionM49());
-			entity.setSubRegion(regionStats.getSubRegion());
-			entity.setLatitude(regionStats.getLatitude());
-			entity.setLongitude(regionStats.getLongitude());
-			entity.setDescription(name);
-			locationRepository.saveAndFlush(entity);
+		final var entity = context.getMergedRegions().get(region);
+		if (entity != null) {
 			return entity;
-		});
+		}
+		final var resource = new NamedResource();
+		resource.setId(region);
+		resource.setName(name);
+		installRegions(context, List.of(resource));
+		return context.getMergedRegions().get(region);
 	}
 
 	/**
@@ -118,8 +818,7 @@ public abstract class AbstractAzureImport extends AbstractImportCatalogResource
 	 */
 	protected ProvInstancePriceTerm installPriceTerm(final UpdateContext context, final AbstractAzurePrice<?> prices,
 			final String termId, final String sku) {
-		final var code = sku.endsWith("-lowpriority") ? TERM_LOW
-				: StringUtils.defaultIfEmpty(Strings.CS.removeStart(termId, "ahb"), DEFAULT_TERM);
+		final var code = toTermCode(termId, sku);
 		final var term = context.getPriceTerms().computeIfAbsent(code, t -> {
 			final var newTerm = new ProvInstancePriceTerm();
 			newTerm.setNode(context.getNode());
@@ -144,6 +843,18 @@ public abstract class AbstractAzureImport extends AbstractImportCatalogResource
 		});
 	}
 
+	/**
+	 * Return the price term code of a SKU in a term.
+	 *
+	 * @param termId The Azure term name.
+	 * @param sku    The SKU name.
+	 * @return The price term code.
+	 */
+	protected String toTermCode(final String termId, final String sku) {
+		return sku.endsWith("-lowpriority") ? TERM_LOW
+				: StringUtils.defaultIfEmpty(Strings.CS.removeStart(termId, "ahb"), DEFAULT_TERM);
+	}
+
 	/**
 	 * Return the period duration from the term name.
 	 */
@@ -159,7 +870,8 @@ public abstract class AbstractAzureImport extends AbstractImportCatalogResource
 
 	protected void commonPreparation(final UpdateContext context, final AbstractAzurePrice<?> prices) {
 		// Install related regions
-		prices.getRegions().stream().filter(r -> isEnabledRegion(context, r)).forEach(r -> installRegion(context, r));
+		prices.getRegions().forEach(r -> context.getRegionIndex().register(r.getId()));
+		installRegions(context, prices.getRegions().stream().filter(r -> isEnabledRegion(context, r)).toList());
 
 		// Build maps
 		prices.getTiers().forEach(n -> prices.getTiersById().put(n.getId(), n.getName()));
@@ -170,17 +882,27 @@ public abstract class AbstractAzureImport extends AbstractImportCatalogResource
 	protected static final int PER_HOUR = 1;
 	protected static final int PER_MONTH = 2;
 
-	protected void updateCostCounters(final double[] costs, final String tiers, final String sku, final double value) {
+	/**
+	 * Return the cost counter of the given pricing tier.
+	 *
+	 * @param tiers The pricing tier, like <code>perhour</code>.
+	 * @param sku   The related SKU, for logging only.
+	 * @return The cost counter: {@link #PER_CORE}, {@link #PER_HOUR}, {@link #PER_MONTH} or <code>-1</code> when
+	 *         unknown.
+	 */
+	protected int toCostCounter(final String tiers, final String sku) {
 		if ("percoreperhour".equals(tiers)) {
-			costs[PER_CORE] += value;
-		} else if (tiers.startsWith("perhour") || tiers.startsWith("perunit")) {
-			costs[PER_HOUR] += value;
-		} else if (tiers.startsWith("permonth")) {
+			return PER_CORE;
+		}
+		if (tiers.startsWith("perhour") || tiers.startsWith("perunit")) {
+			return PER_HOUR;
+		}
+		if (tiers.startsWith("permonth")) {
 			// Reserved and saving plans
-			costs[PER_MONTH] += value;
-		} else {
-			log.error("Unknown pricing tier {} in SKU {}", tiers, sku);
+			return PER_MONTH;
 		}
+		log.error("Unknown pricing tier {} in SKU {}", tiers, sku);
+		return -1;
 	}
 
 	protected String toSizeName(final UpdateContext context, final String id) {
@@ -40,9 +40,10 @@ public abstract class AbstractAzureOffer<T extends AbstractInstanceType> {
 	private String edition;
 
 	/**
-	 * Price per region. Key is the Azure region identifier or <code>global</code>. Value is the actual price.
+	 * Price per tier. Key is the tier name, like <code>perhour</code>. Value is the actual price indexed by region,
+	 * including the {@value RegionIndex#GLOBAL} one.
 	 */
-	private Map<String, Map<String, ValueWrapper>> prices;
+	private Map<String, RegionPrices> prices;
 
 	/**
 	 * Resolved instance type. May be <code>null</code>.
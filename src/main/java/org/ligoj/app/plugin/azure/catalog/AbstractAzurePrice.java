@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
@@ -59,4 +60,10 @@ public abstract class AbstractAzurePrice<P> {
 	@JsonIgnore
 	private final Map<String, String> billingById = new HashMap<>();
 
+	/**
+	 * Resolved SKU components. Key is the component, like <code>linux-a1-basic--perhour</code>.
+	 */
+	@JsonIgnore
+	private final Map<String, SkuComponent<P>> components = new ConcurrentHashMap<>();
+
 }
@@ -3,13 +3,29 @@
  */
 package org.ligoj.app.plugin.azure.catalog;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.ligoj.app.plugin.azure.dao.ProvAzureFingerprintRepository;
+import org.ligoj.app.plugin.azure.model.ProvAzureFingerprint;
 import org.ligoj.app.plugin.prov.model.AbstractInstanceType;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -19,43 +35,81 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public abstract class AbstractVmAzureImport<T extends AbstractInstanceType> extends AbstractAzureImport {
 
-	protected <A extends AbstractAzurePrice<? extends AbstractAzureOffer<T>>> void installSkuComponents(
-			final UpdateContext context, final A prices, final List<String> components, final String sku,
-			final String termName, final BiPredicate<UpdateContext, String> typeFilter,
+	/**
+	 * Header of the serialized fingerprints: <code>AZF</code> and the format version, 2. The fingerprints of another
+	 * format are ignored.
+	 */
+	private static final int FINGERPRINTS_FORMAT = 0x415a4602;
+
+	/**
+	 * Cost counters of the current thread, reused for each SKU.
+	 */
+
+	@Autowired
+	private ProvAzureFingerprintRepository fingerprintRepository;
+
+	/**
+	 * Install the prices of a SKU in a term from its components. When the fingerprint of the resolved components
+	 * matches the last applied one, the prices are not built again and the previous ones are kept.
+	 *
+	 * @param context    The current import context.
+	 * @param costs      The cost counters of the current task, reset for this SKU.
+	 * @param prices     The catalog.
+	 * @param components The SKU components in this term.
+	 * @param sku        The SKU name.
+	 * @param termName   The term name.
+	 * @param localCode  The price code without the region, see {@link #toLocalCode(String)}.
+	 * @param typeFilter The type filter.
+	 * @param callback   The price installer called for each enabled region.
+	 * @param <O>        The offer type.
+	 */
+	protected <O extends AbstractAzureOffer<T>> void installSkuComponents(final UpdateContext context,
+			final CostAccumulator costs, final AbstractAzurePrice<O> prices, final List<String> components,
+			final String sku, final String termName, final String localCode,
+			final BiPredicate<UpdateContext, String> typeFilter,
 			final FiveConsumer<T, String, String, Double, String> callback) {
+		installSkuPrices(context, localCode,
+				computeSkuPrices(context, costs, prices, components, sku, termName, localCode, typeFilter), callback);
+	}
+
+	/**
+	 * Compute the prices of a SKU in a term from its components, without installing them. Only the thread safe
+	 * structures of the context are updated, so this method can be called concurrently.
+	 *
+	 * @param context    The current import context.
+	 * @param costs      The cost counters of the current task, reset for this SKU.
+	 * @param prices     The catalog.
+	 * @param components The SKU components in this term.
+	 * @param sku        The SKU name.
+	 * @param termName   The term name.
+	 * @param localCode  The price code without the region, see {@link #toLocalCode(String)}.
+	 * @param typeFilter The type filter.
+	 * @param <O>        The offer type.
+	 * @return The computed prices, or <code>null</code> when the SKU is invalid or filtered.
+	 */
+	protected <O extends AbstractAzureOffer<T>> SkuPrices<T> computeSkuPrices(final UpdateContext context,
+			final CostAccumulator costs, final AbstractAzurePrice<O> prices, final List<String> components,
+			final String sku, final String termName, final String localCode,
+			final BiPredicate<UpdateContext, String> typeFilter) {
 		T type = null;
-		final Map<String, double[]> localCosts = new HashMap<>();
+		costs.reset();
 		String edition = null;
 		String storageEngine = null;
-		final var globalCosts = new double[3];
+		var fingerprint = Fingerprint.SEED;
 		for (final var component : components) {
-			final var parts = component.split("--");
-			if (parts.length != 2) {
-				// Any invalid part invalidates the list
-				log.error("Invalid price {} found for SKU {} in term {}", component, sku, termName);
-				return;
-			}
-			final var offerId = parts[0];
-			final var offer = prices.getOffers().get(offerId);
-			if (offer == null || offer.getPrices() == null) {
+			final var resolved = prices.getComponents().computeIfAbsent(component,
+					c -> resolveComponent(context, prices, c, sku));
+			if (resolved.getStatus() != SkuComponent.Status.VALID) {
 				// Any invalid part invalidates the list
-				log.error("Invalid offer reference {} found for SKU {} in term {}", offerId, sku, termName);
-				return;
+				log.error(resolved.getStatus().getMessage(), resolved.getReference(), sku, termName);
+				return null;
 			}
-
-			final var tiers = parts[1];
-			final var localPrices = offer.getPrices().get(tiers);
-			if (localPrices == null) {
-				// Any invalid part invalidates the list
-				log.error("Invalid tiers reference {} found for SKU {} in term {}", tiers, sku, termName);
-				return;
-			}
-			if (localPrices.containsKey("global")) {
-				updateCostCounters(globalCosts, tiers, sku, localPrices.get("global").getValue());
+			fingerprint = Fingerprint.mix(fingerprint, resolved.getFingerprint());
+			if (resolved.isGlobal()) {
+				costs.addGlobal(resolved.getCounter(), resolved.getGlobal());
 			} else {
-				localPrices.entrySet().stream().filter(e -> isEnabledRegion(context, e.getKey()))
-						.forEach(e -> updateCostCounters(localCosts.computeIfAbsent(e.getKey(), r -> new double[3]),
-								tiers, sku, e.getValue().getValue()));
+				costs.add(resolved.getRegions(), resolved.getCosts(), resolved.getCounter());
+				final var offer = resolved.getOffer();
 				type = ObjectUtils.getIfNull(offer.getType(), type);
 				edition = ObjectUtils.getIfNull(offer.getEdition(), edition);
 				storageEngine = ObjectUtils.getIfNull(offer.getStorageEngine(), storageEngine);
@@ -64,25 +118,200 @@ public abstract class AbstractVmAzureImport<T extends AbstractInstanceType> exte
 		if (type == null) {
 			// Any invalid part invalidates the list
 			log.error("Unresolved type found for SKU {} in term {}", sku, termName);
-			return;
+			return null;
 		}
 		if (!typeFilter.test(context, type.getCode())) {
 			// Ignored type
-			return;
+			return null;
 		}
 
 		// Compute global prices
-		final var globalCost = toMonthlyCost(context, type, globalCosts);
-
-		// Iterate over regions enabling this instance type
-		final var typeF = type;
-		final var editionF = edition;
-		final var storageEngineF = storageEngine;
-		localCosts.forEach((r, costs) -> callback.accept(typeF, editionF, storageEngineF,
-				toMonthlyCost(context, typeF, costs) + globalCost, r));
+		final double cpu = type.getCpu();
+		final var hoursMonth = context.getHoursMonth();
+		fingerprint = Fingerprint.mix(Fingerprint.mix(Fingerprint.mix(fingerprint, type.getCode()), cpu), hoursMonth);
+		final var globalCost = costs.getGlobalMonthlyCost(cpu, hoursMonth);
+
+		// Copy the costs of the regions enabling this instance type, the accumulator is reused by the next SKU
+		final var regions = new int[context.getRegionIndex().size()];
+		final var monthlyCosts = new double[regions.length];
+		var count = 0;
+		for (var r = costs.nextRegion(0); r >= 0; r = costs.nextRegion(r + 1)) {
+			regions[count] = r;
+			monthlyCosts[count++] = costs.getMonthlyCost(r, cpu, hoursMonth) + globalCost;
+		}
+		final var skuFingerprint = new SkuFingerprint(fingerprint, count);
+		if (skuFingerprint.equals(context.getFingerprints().get(localCode))
+				&& context.getPreviousCodes().getOrDefault(localCode, List.of()).size() == count) {
+			// Same costs than the last applied catalog, and the previous prices still exist: keep them
+			return SkuPrices.kept(skuFingerprint);
+		}
+		return new SkuPrices<>(type, edition, storageEngine, Arrays.copyOf(regions, count),
+				Arrays.copyOf(monthlyCosts, count), skuFingerprint, false);
+	}
+
+	/**
+	 * Install the computed prices of a SKU in a term, and record its fingerprint. Must be called by the thread owning
+	 * the persistence context, so a SKU computed but not installed because of a failure is not recorded.
+	 *
+	 * @param context   The current import context.
+	 * @param localCode The price code without the region, see {@link #toLocalCode(String)}.
+	 * @param prices    The computed prices, may be <code>null</code>.
+	 * @param callback  The price installer called for each enabled region.
+	 */
+	protected void installSkuPrices(final UpdateContext context, final String localCode, final SkuPrices<T> prices,
+			final FiveConsumer<T, String, String, Double, String> callback) {
+		if (prices == null) {
+			// Invalid or filtered SKU
+			return;
+		}
+		context.getNewFingerprints().put(localCode, prices.getFingerprint());
+		if (prices.isKept()) {
+			context.getPrices().addAll(context.getPreviousCodes().getOrDefault(localCode, List.of()));
+			return;
+		}
+		final var index = context.getRegionIndex();
+		final var regions = prices.getRegions();
+		for (var i = 0; i < regions.length; i++) {
+			callback.accept(prices.getType(), prices.getEdition(), prices.getStorageEngine(), prices.getCosts()[i],
+					index.getName(regions[i]));
+		}
+	}
+
+	/**
+	 * Load the SKU fingerprints of the last applied catalog, and index the previous price codes by their local code.
+	 * Nothing is loaded in force mode.
+	 *
+	 * @param context  The current import context.
+	 * @param catalog  The catalog name.
+	 * @param previous The previous price codes.
+	 */
+	protected void loadFingerprints(final UpdateContext context, final String catalog,
+			final Collection<String> previous) {
+		context.getNewFingerprints().clear();
+		context.setFingerprints(Map.of());
+		context.setPreviousCodes(Map.of());
+		if (context.isForce()) {
+			return;
+		}
+		final var entity = fingerprintRepository.findBy("node", context.getNode(), new String[] { "catalog" },
+				catalog);
+		if (entity == null) {
+			return;
+		}
+		context.setFingerprints(toFingerprints(entity.getFingerprints()));
+		context.setPreviousCodes(previous.stream().collect(Collectors.groupingBy(this::toLocalCode)));
+	}
+
+	/**
+	 * Save the SKU fingerprints of the applied catalog.
+	 *
+	 * @param context The current import context.
+	 * @param catalog The catalog name.
+	 */
+	protected void saveFingerprints(final UpdateContext context, final String catalog) {
+		var entity = fingerprintRepository.findBy("node", context.getNode(), new String[] { "catalog" }, catalog);
+		if (entity == null) {
+			entity = new ProvAzureFingerprint();
+			entity.setNode(context.getNode());
+			entity.setCatalog(catalog);
+		}
+		entity.setFingerprints(toBytes(context.getNewFingerprints()));
+		fingerprintRepository.save(entity);
+		context.getNewFingerprints().clear();
+	}
+
+	/**
+	 * Return the price code without the region: <code>europe-north/byol/payg/sku</code> becomes
+	 * <code>byol/payg/sku</code>.
+	 *
+	 * @param code The price code.
+	 * @return The local price code.
+	 */
+	protected String toLocalCode(final String code) {
+		return StringUtils.substringAfter(code, "/");
+	}
+
+	/**
+	 * Serialize and compress the fingerprints, sorted by local code, after the format header.
+	 */
+	private byte[] toBytes(final Map<String, SkuFingerprint> fingerprints) {
+		final var bytes = new ByteArrayOutputStream();
+		try (var output = new DataOutputStream(new GZIPOutputStream(bytes))) {
+			output.writeInt(FINGERPRINTS_FORMAT);
+			output.writeInt(fingerprints.size());
+			for (final var entry : new TreeMap<>(fingerprints).entrySet()) {
+				output.writeUTF(entry.getKey());
+				output.writeLong(entry.getValue().getHash());
+				output.writeInt(entry.getValue().getCount());
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decompress and deserialize the fingerprints. Any doubt on the content, such as another format or trailing data,
+	 * ignores all the fingerprints, so all SKUs are installed.
+	 */
+	private Map<String, SkuFingerprint> toFingerprints(final byte[] bytes) {
+		final var fingerprints = new HashMap<String, SkuFingerprint>();
+		try (var input = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)))) {
+			if (input.readInt() != FINGERPRINTS_FORMAT) {
+				log.info("Ignored SKU fingerprints of another format");
+				return Map.of();
+			}
+			for (var count = input.readInt(); count > 0; count--) {
+				fingerprints.put(input.readUTF(), new SkuFingerprint(input.readLong(), input.readInt()));
+			}
+			if (input.read() >= 0) {
+				throw new IOException("Unexpected data after the SKU fingerprints");
+			}
+		} catch (final IOException e) {
+			// Corrupted fingerprints, all SKUs are installed
+			log.warn("Ignored invalid SKU fingerprints", e);
+			return Map.of();
+		}
+		return fingerprints;
 	}
 
-	private double toMonthlyCost(final UpdateContext context, T type, double[] costs) {
-		return costs[PER_MONTH] + (costs[PER_HOUR] + costs[PER_CORE] * type.getCpu()) * context.getHoursMonth();
+	/**
+	 * Resolve a SKU component, like <code>linux-a1-basic--perhour</code>, into its offer, its cost counter and the
+	 * costs of the enabled regions.
+	 */
+	private <O extends AbstractAzureOffer<T>> SkuComponent<O> resolveComponent(final UpdateContext context,
+			final AbstractAzurePrice<O> prices, final String component, final String sku) {
+		final var separator = component.indexOf("--");
+		if (separator < 0 || separator + 2 == component.length() || component.indexOf("--", separator + 2) >= 0) {
+			return SkuComponent.invalid(SkuComponent.Status.INVALID_PRICE, component);
+		}
+		final var offerId = component.substring(0, separator);
+		final var offer = prices.getOffers().get(offerId);
+		if (offer == null || offer.getPrices() == null) {
+			return SkuComponent.invalid(SkuComponent.Status.INVALID_OFFER, offerId);
+		}
+
+		final var tiers = component.substring(separator + 2);
+		final var localPrices = offer.getPrices().get(tiers);
+		if (localPrices == null) {
+			return SkuComponent.invalid(SkuComponent.Status.INVALID_TIERS, tiers);
+		}
+		final var counter = toCostCounter(tiers, sku);
+		if (localPrices.has(RegionIndex.GLOBAL_ID)) {
+			return SkuComponent.global(offer, counter, localPrices.get(RegionIndex.GLOBAL_ID));
+		}
+
+		// Keep only the enabled regions
+		final var ids = new int[localPrices.length()];
+		final var costs = new double[ids.length];
+		var count = 0;
+		for (var r = 0; r < ids.length; r++) {
+			if (localPrices.has(r) && isEnabledRegion(context, r)) {
+				ids[count] = r;
+				costs[count++] = localPrices.get(r);
+			}
+		}
+		return SkuComponent.regional(offer, counter, Arrays.copyOf(ids, count), Arrays.copyOf(costs, count),
+				context.getRegionIndex());
 	}
 }
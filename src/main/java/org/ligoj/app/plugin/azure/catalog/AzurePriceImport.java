@@ -4,7 +4,13 @@
 package org.ligoj.app.plugin.azure.catalog;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
 
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import org.apache.commons.lang3.EnumUtils;
 import org.ligoj.app.plugin.azure.ProvAzurePluginResource;
 import org.ligoj.app.plugin.azure.catalog.database.AzurePriceImportDatabase;
 import org.ligoj.app.plugin.azure.catalog.disk.AzurePriceImportDisk;
@@ -14,15 +20,80 @@ import org.ligoj.app.plugin.prov.catalog.AbstractImportCatalogResource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * The provisioning price service for Azure. Manage install or update of prices.<br>
  */
+@Slf4j
 @Component
 @Setter
 public class AzurePriceImport extends AbstractImportCatalogResource {
 
+	/**
+	 * Configuration key used to enable the concurrent retrieval of the database and disk catalogs while the VM catalog
+	 * is installed.
+	 */
+	public static final String CONF_CONCURRENT = ProvAzurePluginResource.KEY + ":concurrent";
+
+	/**
+	 * Configuration key used to set the amount of prices written in a single JDBC batch.
+	 */
+	public static final String CONF_BATCH_SIZE = ProvAzurePluginResource.KEY + ":batch-size";
+
+	/**
+	 * Configuration key used to install each catalog in its own transaction. A failed import is then resumed from the
+	 * first catalog not installed.
+	 */
+	public static final String CONF_PHASE_TRANSACTION = ProvAzurePluginResource.KEY + ":phase-transaction";
+
+	/**
+	 * Configuration key used to set the mirror mode of the raw catalogs: <code>off</code>, <code>record</code> or
+	 * <code>replay</code>.
+	 */
+	public static final String CONF_MIRROR = ProvAzurePluginResource.KEY + ":mirror";
+
+	/**
+	 * Configuration key used to set the directory of the raw catalogs mirror.
+	 */
+	public static final String CONF_MIRROR_PATH = ProvAzurePluginResource.KEY + ":mirror-path";
+
+	/**
+	 * Configuration key used to set the purge mode of the prices not installed by the import: <code>entity</code> or
+	 * <code>bulk</code>. In bulk mode, the kept price codes are written in a table, and the other prices are deleted
+	 * by a single statement per price type.
+	 */
+	public static final String CONF_PURGE = ProvAzurePluginResource.KEY + ":purge";
+
+	/**
+	 * Configuration key used to set the amount of written prices between two evictions of the persistence context.
+	 * <code>0</code>, the default, keeps the loaded entities until the end of the import.
+	 */
+	public static final String CONF_EVICT_SIZE = ProvAzurePluginResource.KEY + ":evict-size";
+
+	/**
+	 * Configuration key used to stage the catalog: all catalogs are retrieved before the first write, then the prices
+	 * are published in a single transaction. The phase transactions and the evictions are then ignored.
+	 */
+	public static final String CONF_STAGED = ProvAzurePluginResource.KEY + ":staged";
+
+	/**
+	 * Configuration key used to insert the prices of a first install with a stateless session, the default. When
+	 * <code>false</code>, these prices are persisted with the persistence context and their lifecycle callbacks.
+	 */
+	public static final String CONF_STATELESS_INSERT = ProvAzurePluginResource.KEY + ":stateless-insert";
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * The metrics of the last import, even failed.
+	 */
+	@Getter
+	private ImportMetrics lastMetrics;
+
 	@Autowired
 	private AzurePriceImportBase base;
 
@@ -38,6 +109,15 @@ public class AzurePriceImport extends AbstractImportCatalogResource {
 	@Autowired
 	private AzurePriceImportSupport support;
 
+	@Autowired
+	private CatalogFetcher fetcher;
+
+	@Autowired
+	private ImportTransactions transactions;
+
+	@Autowired
+	private KeptPricePurge keptPrices;
+
 	/**
 	 * Install or update prices.
 	 *
@@ -46,11 +126,84 @@ public class AzurePriceImport extends AbstractImportCatalogResource {
 	 */
 	public void install(final boolean force) throws IOException {
 		final var context = initContext(new UpdateContext(), ProvAzurePluginResource.KEY, force);
+		context.setPhaseTransaction(Boolean.parseBoolean(configuration.get(CONF_PHASE_TRANSACTION, "false")));
+		context.setMirror(new CatalogMirror(
+				EnumUtils.getEnumIgnoreCase(CatalogMirror.Mode.class, configuration.get(CONF_MIRROR),
+						CatalogMirror.Mode.OFF),
+				Path.of(configuration.get(CONF_MIRROR_PATH,
+						Path.of(System.getProperty("java.io.tmpdir"), "ligoj-azure-mirror").toString()))));
+
+		context.setReadTimeout(fetcher.getReadTimeout());
+		final var staged = Boolean.parseBoolean(configuration.get(CONF_STAGED, "false"));
+		var evictSize = configuration.get(CONF_EVICT_SIZE, 0);
+		if (staged) {
+			// A partially installed catalog is never committed, and the published prices are kept until the commit
+			context.setPhaseTransaction(false);
+			if (evictSize > 0) {
+				log.warn("Azure staged import ignores the eviction size");
+			}
+			evictSize = 0;
+		}
+		context.setBulkPurge("bulk".equalsIgnoreCase(configuration.get(CONF_PURGE, "entity")));
+		if (context.isBulkPurge()) {
+			// Ignore the codes kept by a previous failed import
+			keptPrices.clear(context);
+		}
+		try {
+			base.install(context);
+			try (var client = fetcher.newHttpClient();
+					var writer = new PriceWriter(em, configuration.get(CONF_BATCH_SIZE, 500), evictSize)) {
+				context.setHttpClient(client);
+				writer.setMetrics(context.getMetrics());
+				writer.setStateless(Boolean.parseBoolean(configuration.get(CONF_STATELESS_INSERT, "true")));
+				writer.setEvictor(() -> transactions.evict(context));
+				context.setWriter(writer);
+				if (staged) {
+					try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+						database.prefetch(context, executor);
+						disk.prefetch(context, executor);
+						base.publish(context, () -> installPrices(context));
+					} finally {
+						context.getCatalogs().clear();
+					}
+				} else if (Boolean.parseBoolean(configuration.get(CONF_CONCURRENT, "false"))) {
+					// Download and parse the catalogs in background, the installation remains sequential since it
+					// shares the same persistence context
+					try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+						// At most one database engine catalog is retrieved ahead of the installed one
+						context.setPrefetcher(executor);
+						database.prefetchFirst(context, executor);
+						disk.prefetch(context, executor);
+						installPrices(context);
+					} finally {
+						// Release the catalogs not consumed because of a failure
+						context.setPrefetcher(null);
+						context.getCatalogs().clear();
+					}
+				} else {
+					installPrices(context);
+				}
+			}
+			support.install(context);
+			if (context.isBulkPurge()) {
+				keptPrices.clear(context);
+			}
+
+			// The import is complete, the next one starts from the beginning
+			configuration.delete(AbstractAzureImport.CONF_CHECKPOINTS);
+		} finally {
+			final var metrics = context.getMetrics();
+			metrics.step(null);
+			metrics.increment("regions", context.getMergedRegions().size());
+			lastMetrics = metrics;
+			log.info("Azure import metrics: {}", metrics);
+		}
+	}
 
-		base.install(context);
-		vm.install(context);
+	private void installPrices(final UpdateContext context) throws IOException {
+		transactions.runPhase(context, () -> vm.install(context));
+		// Each database engine is a phase
 		database.install(context);
-		disk.install(context);
-		support.install(context);
+		transactions.runPhase(context, () -> disk.install(context));
 	}
 }
@@ -25,14 +25,17 @@ public class AzurePriceImportBase extends AbstractAzureImport {
 
 	@Override
 	public void install(final UpdateContext context) throws IOException {
-		nextStep(context, "region");
+		startStep(context, "region");
 		context.setValidRegion(Pattern.compile(configuration.get(CONF_REGIONS, ".*")));
 		context.getMapRegionById().putAll(toMap("azure-regions.json", MAP_LOCATION));
+		context.getMapRegionById().keySet().forEach(context.getRegionIndex()::register);
+		initEnabledRegions(context);
 
 		// The previously installed location cache. Key is the location Azure name
 		context.setRegions(locationRepository.findAllBy(BY_NODE, context.getNode()).stream()
 				.filter(r -> isEnabledRegion(context, r))
-				.collect(Collectors.toMap(INamableBean::getName, Function.identity())));
+				.collect(Collectors.toConcurrentMap(INamableBean::getName, Function.identity())));
+		loadCheckpoints(context);
 	}
 
 }
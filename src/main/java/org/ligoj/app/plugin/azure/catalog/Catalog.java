@@ -0,0 +1,33 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A retrieved catalog.
+ *
+ * @param <P> The catalog type.
+ */
+@Getter
+@AllArgsConstructor
+public class Catalog<P> {
+
+	/**
+	 * The state to save once this catalog is applied. <code>null</code> when the catalog could not be retrieved.
+	 */
+	private final CatalogState state;
+
+	/**
+	 * When <code>true</code>, the catalog is the same as the last applied one, or has been applied by the interrupted
+	 * previous import, and has not been parsed.
+	 */
+	private final boolean unchanged;
+
+	/**
+	 * The parsed catalog. <code>null</code> when unchanged.
+	 */
+	private final P prices;
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.ligoj.app.plugin.azure.ProvAzurePluginResource;
+import org.ligoj.bootstrap.resource.system.configuration.ConfigurationResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Retrieve the raw catalogs: HTTP download with conditional requests and compression, content hash, and the mirror
+ * of the raw catalogs.
+ */
+@Slf4j
+@Component
+public class CatalogFetcher {
+
+	/**
+	 * Configuration key used to set the connection timeout in seconds of the catalog downloads.
+	 */
+	public static final String CONF_CONNECT_TIMEOUT = ProvAzurePluginResource.KEY + ":connect-timeout";
+
+	/**
+	 * Configuration key used to set the timeout in seconds until the response headers of a catalog are received. The
+	 * transfer of the body is not bounded by this timeout, only by the connection of the HTTP client.
+	 */
+	public static final String CONF_READ_TIMEOUT = ProvAzurePluginResource.KEY + ":read-timeout";
+
+	@Autowired
+	private ConfigurationResource configuration;
+
+	/**
+	 * Return the catalog name from its URL, such as <code>virtual-machines</code>.
+	 *
+	 * @param url The catalog URL.
+	 * @return The catalog name.
+	 */
+	public static String toCatalogName(final String url) {
+		return StringUtils.substringAfterLast(StringUtils.removeEnd(StringUtils.removeEnd(url, "/"), "/calculator"),
+				"/");
+	}
+
+	/**
+	 * Open the catalog stream from the given URL. When the last applied catalog is known, a conditional request is sent
+	 * and the content hash is compared. When the catalog cannot be retrieved, an empty catalog is returned. In mirror
+	 * replay mode, the catalog is read from the mirror without any request.
+	 *
+	 * @param context  The current import context.
+	 * @param url      The catalog URL.
+	 * @param settings The settings of this importer.
+	 * @param previous The state of the last applied catalog. May be <code>null</code>.
+	 * @return The catalog stream, to be closed by the caller.
+	 * @throws IOException When prices cannot be remotely read.
+	 */
+	public CatalogStream openCatalog(final UpdateContext context, final String url, final String settings,
+			final CatalogState previous) throws IOException {
+		final var mirror = context.getMirror();
+		if (mirror.getMode() == CatalogMirror.Mode.REPLAY) {
+			return replay(mirror, url, settings, previous);
+		}
+		final var uri = URI.create(url);
+		// The request timeout only bounds the wait of the response headers, not the body stream
+		final var request = HttpRequest.newBuilder(uri).GET().timeout(context.getReadTimeout())
+				.header("Accept-Encoding", "gzip");
+		if ("https".equals(uri.getScheme())) {
+			// HTTP/2 is negotiated with TLS, clear text connections remain in HTTP/1.1 without upgrade
+			request.version(HttpClient.Version.HTTP_2);
+		} else {
+			request.version(HttpClient.Version.HTTP_1_1);
+		}
+		if (previous != null) {
+			Optional.ofNullable(previous.getEtag()).ifPresent(e -> request.header("If-None-Match", e));
+			Optional.ofNullable(previous.getLastModified()).ifPresent(m -> request.header("If-Modified-Since", m));
+		}
+		final var start = System.nanoTime();
+		final HttpResponse<InputStream> response;
+		try {
+			response = context.getHttpClient().send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted retrieval of the catalog {}", url, e);
+			return CatalogStream.empty();
+		} catch (final IOException e) {
+			log.error("Unable to retrieve the catalog {}", url, e);
+			return CatalogStream.empty();
+		}
+		if (response.statusCode() == 304 && previous != null) {
+			response.body().close();
+			log.info("Catalog {} is not modified", url);
+			return CatalogStream.unchanged(previous);
+		}
+		if (response.statusCode() == 200) {
+			return download(context, url, settings, previous, response, start);
+		}
+		log.error("Unable to retrieve the catalog {}, status {}", url, response.statusCode());
+		response.body().close();
+		return CatalogStream.empty();
+	}
+
+	/**
+	 * Return a new HTTP client shared by the catalog downloads of an import. The connections are pooled and kept
+	 * alive between the catalogs.
+	 *
+	 * @return A new HTTP client to close once the import is complete.
+	 */
+	public HttpClient newHttpClient() {
+		return HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL)
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(Duration.ofSeconds(configuration.get(CONF_CONNECT_TIMEOUT, 10))).build();
+	}
+
+	/**
+	 * Return the timeout until the response headers of a catalog are received.
+	 *
+	 * @return The timeout until the response headers of a catalog are received.
+	 */
+	public Duration getReadTimeout() {
+		return Duration.ofSeconds(configuration.get(CONF_READ_TIMEOUT, 60));
+	}
+
+	/**
+	 * Download the catalog content in a temporary file while computing its hash. In mirror record mode, the content is
+	 * also stored in the mirror. The compressed responses are decompressed while streaming.
+	 */
+	private CatalogStream download(final UpdateContext context, final String url, final String settings,
+			final CatalogState previous, final HttpResponse<InputStream> response, final long start)
+			throws IOException {
+		final var ttfb = (System.nanoTime() - start) / 1_000_000;
+		final var state = newCatalogState(url, settings);
+		state.setEtag(response.headers().firstValue("ETag").orElse(null));
+		state.setLastModified(response.headers().firstValue("Last-Modified").orElse(null));
+
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final var file = Files.createTempFile("azure-" + state.getName() + "-", ".json");
+		final var wire = new CountingInputStream(response.body());
+		final long size;
+		try (var input = new DigestInputStream(decode(response, wire), digest)) {
+			size = Files.copy(input, file, StandardCopyOption.REPLACE_EXISTING);
+		} catch (final IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		final var payload = context.getMetrics().getPayload(url);
+		payload.setWireBytes(wire.getCount());
+		payload.setBytes(size);
+		payload.setDownloadTime((System.nanoTime() - start) / 1_000_000);
+		payload.setDownloadStart(System.currentTimeMillis() - payload.getDownloadTime());
+		log.info("Catalog {} downloaded: {} bytes on wire, {} bytes decompressed, first byte in {}ms, total {}ms", url,
+				payload.getWireBytes(), size, ttfb, payload.getDownloadTime());
+		state.setHash(HexFormat.of().formatHex(digest.digest()));
+		final var mirror = context.getMirror();
+		if (mirror.getMode() == CatalogMirror.Mode.RECORD) {
+			mirror.record(url, state.getHash(), file);
+		}
+		if (previous != null && state.getHash().equals(previous.getHash())) {
+			Files.deleteIfExists(file);
+			log.info("Catalog {} is unchanged", url);
+			return CatalogStream.unchanged(state);
+		}
+		return CatalogStream.of(state, file);
+	}
+
+	/**
+	 * Return the decompressed body according to the response encoding.
+	 */
+	private InputStream decode(final HttpResponse<InputStream> response, final InputStream body) throws IOException {
+		final var encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+		if ("gzip".equalsIgnoreCase(encoding)) {
+			return new GZIPInputStream(body, 64 * 1024);
+		}
+		return body;
+	}
+
+	/**
+	 * Input stream counting the read bytes.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		@Getter
+		private long count;
+
+		private CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final var b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final var read = super.read(b, off, len);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			final var skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	private CatalogStream replay(final CatalogMirror mirror, final String url, final String settings,
+			final CatalogState previous) throws IOException {
+		final var hash = mirror.getLatest(url);
+		if (hash == null) {
+			log.error("Unable to replay the catalog {}, not recorded in the mirror", url);
+			return CatalogStream.empty();
+		}
+		final var state = newCatalogState(url, settings);
+		state.setHash(hash);
+		if (previous != null && hash.equals(previous.getHash())) {
+			log.info("Catalog {} is unchanged", url);
+			return CatalogStream.unchanged(state);
+		}
+		return CatalogStream.of(state, mirror.open(hash));
+	}
+
+	private CatalogState newCatalogState(final String url, final String settings) {
+		final var state = new CatalogState();
+		state.setName(toCatalogName(url));
+		state.setUrl(url);
+		state.setSettings(settings);
+		return state;
+	}
+}
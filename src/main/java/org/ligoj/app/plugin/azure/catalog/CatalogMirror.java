@@ -0,0 +1,163 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local mirror of the raw catalogs. The contents are stored compressed and named by their SHA-256 hash, so an unchanged
+ * catalog is stored once. Each catalog URL has an index file listing the recorded hashes, the last one being the
+ * replayed one.
+ */
+@Slf4j
+public class CatalogMirror {
+
+	/**
+	 * Mirror mode.
+	 */
+	public enum Mode {
+		/**
+		 * No mirror, the catalogs are downloaded.
+		 */
+		OFF,
+
+		/**
+		 * The downloaded catalogs are recorded in the mirror.
+		 */
+		RECORD,
+
+		/**
+		 * The catalogs are read from the mirror, without any request.
+		 */
+		REPLAY
+	}
+
+	private static final String CONTENT_EXTENSION = ".json.gz";
+
+	/**
+	 * The mirror mode.
+	 */
+	@Getter
+	private final Mode mode;
+
+	private final Path directory;
+
+	/**
+	 * Create a mirror.
+	 *
+	 * @param mode      The mirror mode.
+	 * @param directory The mirror directory. Not used when the mode is {@link Mode#OFF}.
+	 */
+	public CatalogMirror(final Mode mode, final Path directory) {
+		this.mode = mode;
+		this.directory = directory;
+	}
+
+	/**
+	 * Record a downloaded catalog content.
+	 *
+	 * @param url     The catalog URL.
+	 * @param hash    The SHA-256 hash of the content.
+	 * @param content The downloaded content.
+	 * @throws IOException When the content cannot be written.
+	 */
+	public synchronized void record(final String url, final String hash, final Path content) throws IOException {
+		Files.createDirectories(directory);
+		final var target = directory.resolve(hash + CONTENT_EXTENSION);
+		if (!Files.exists(target)) {
+			final var temp = Files.createTempFile(directory, hash, ".tmp");
+			try (var output = new GZIPOutputStream(Files.newOutputStream(temp))) {
+				Files.copy(content, output);
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		}
+		Files.writeString(toIndex(url), Instant.now() + " " + hash + "\n", StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		log.info("Catalog {} recorded as {}", url, hash);
+	}
+
+	/**
+	 * Return the hash of the last recorded content of a catalog.
+	 *
+	 * @param url The catalog URL.
+	 * @return The hash of the last recorded content. <code>null</code> when this catalog has not been recorded.
+	 * @throws IOException When the index cannot be read.
+	 */
+	public synchronized String getLatest(final String url) throws IOException {
+		final var index = toIndex(url);
+		if (!Files.exists(index)) {
+			return null;
+		}
+		final var lines = Files.readAllLines(index);
+		return lines.isEmpty() ? null : StringUtils.substringAfter(lines.getLast(), " ");
+	}
+
+	/**
+	 * Open a recorded content. The compressed file is memory mapped and decompressed while it is read.
+	 *
+	 * @param hash The hash of the content.
+	 * @return The decompressed content stream.
+	 * @throws IOException When the content cannot be read.
+	 */
+	public InputStream open(final String hash) throws IOException {
+		try (var channel = FileChannel.open(directory.resolve(hash + CONTENT_EXTENSION), StandardOpenOption.READ)) {
+			// The mapping remains valid after the channel is closed
+			return new GZIPInputStream(new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size())), 64 * 1024);
+		}
+	}
+
+	private Path toIndex(final String url) {
+		return directory.resolve(URLEncoder.encode(url, StandardCharsets.UTF_8) + ".log");
+	}
+
+	/**
+	 * Input stream reading a byte buffer.
+	 */
+	private static class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		private BufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final var read = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, read);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
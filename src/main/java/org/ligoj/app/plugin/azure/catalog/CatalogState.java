@@ -0,0 +1,48 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * State of the last applied catalog, used to skip an unchanged catalog.
+ */
+@Getter
+@Setter
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CatalogState {
+
+	/**
+	 * The catalog name, such as <code>virtual-machines</code>.
+	 */
+	private String name;
+
+	/**
+	 * The catalog URL.
+	 */
+	private String url;
+
+	/**
+	 * The import settings applied to this catalog, such as the regions filter.
+	 */
+	private String settings;
+
+	/**
+	 * The <code>ETag</code> header of the catalog response, when provided.
+	 */
+	private String etag;
+
+	/**
+	 * The <code>Last-Modified</code> header of the catalog response, when provided.
+	 */
+	private String lastModified;
+
+	/**
+	 * The SHA-256 hash of the catalog content.
+	 */
+	private String hash;
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import lombok.Getter;
+
+/**
+ * A retrieved catalog content. A downloaded content is stored in a temporary file deleted on close.
+ */
+public class CatalogStream implements Closeable {
+
+	/**
+	 * The state of this catalog. <code>null</code> when the catalog could not be retrieved.
+	 */
+	@Getter
+	private final CatalogState state;
+
+	/**
+	 * When <code>true</code>, the catalog is the same as the last applied one and there is no content to read.
+	 */
+	@Getter
+	private final boolean unchanged;
+
+	private final Path file;
+
+	private InputStream input;
+
+	private CatalogStream(final CatalogState state, final boolean unchanged, final Path file,
+			final InputStream input) {
+		this.state = state;
+		this.unchanged = unchanged;
+		this.file = file;
+		this.input = input;
+	}
+
+	/**
+	 * Return a downloaded catalog.
+	 *
+	 * @param state The state of this catalog.
+	 * @param file  The downloaded content.
+	 * @return The catalog stream.
+	 */
+	public static CatalogStream of(final CatalogState state, final Path file) {
+		return new CatalogStream(state, false, file, null);
+	}
+
+	/**
+	 * Return a catalog read from a stream.
+	 *
+	 * @param state The state of this catalog.
+	 * @param input The content, closed with the returned object.
+	 * @return The catalog stream.
+	 */
+	public static CatalogStream of(final CatalogState state, final InputStream input) {
+		return new CatalogStream(state, false, null, input);
+	}
+
+	/**
+	 * Return a catalog identical to the last applied one.
+	 *
+	 * @param state The state of this catalog.
+	 * @return The catalog stream without content.
+	 */
+	public static CatalogStream unchanged(final CatalogState state) {
+		return new CatalogStream(state, true, null, null);
+	}
+
+	/**
+	 * Return an empty catalog, used when the catalog could not be retrieved.
+	 *
+	 * @return The empty catalog stream.
+	 */
+	public static CatalogStream empty() {
+		return new CatalogStream(null, false, null, null);
+	}
+
+	/**
+	 * Return the catalog content.
+	 *
+	 * @return The catalog content, closed with this object.
+	 * @throws IOException When the content cannot be read.
+	 */
+	public InputStream getInput() throws IOException {
+		if (input == null) {
+			input = file == null ? new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8))
+					: Files.newInputStream(file);
+		}
+		return input;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (input != null) {
+				input.close();
+			}
+		} finally {
+			if (file != null) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Reusable cost counters of a SKU, indexed by region identifier of {@link RegionIndex}. Not thread safe, an instance
+ * is owned by a single import task, passed down to the SKU computations and reset before each SKU.
+ */
+public class CostAccumulator {
+
+	/**
+	 * Cost counters per region. For each region, the costs are stored at <code>region * 3 + kind</code>, where kind is
+	 * {@link AbstractAzureImport#PER_CORE}, {@link AbstractAzureImport#PER_HOUR} or
+	 * {@link AbstractAzureImport#PER_MONTH}.
+	 */
+	private double[] costs = new double[3 * 64];
+
+	/**
+	 * Regions having at least one cost.
+	 */
+	private final BitSet regions = new BitSet();
+
+	/**
+	 * Global cost counters.
+	 */
+	private final double[] global = new double[3];
+
+	/**
+	 * Reset all counters.
+	 */
+	public void reset() {
+		for (var region = regions.nextSetBit(0); region >= 0; region = regions.nextSetBit(region + 1)) {
+			Arrays.fill(costs, region * 3, region * 3 + 3, 0d);
+		}
+		regions.clear();
+		Arrays.fill(global, 0d);
+	}
+
+	/**
+	 * Add a regional cost. The region is registered even when the cost kind is unknown.
+	 *
+	 * @param region The region identifier.
+	 * @param kind   The cost kind or <code>-1</code> when unknown.
+	 * @param value  The cost to add.
+	 */
+	public void add(final int region, final int kind, final double value) {
+		if (region * 3 + 3 > costs.length) {
+			costs = Arrays.copyOf(costs, Math.max(region * 3 + 3, costs.length * 2));
+		}
+		regions.set(region);
+		if (kind >= 0) {
+			costs[region * 3 + kind] += value;
+		}
+	}
+
+	/**
+	 * Add the regional costs of a component. The regions are registered even when the cost kind is unknown.
+	 *
+	 * @param regions The region identifiers.
+	 * @param values  The costs to add, in the same order than the regions.
+	 * @param kind    The cost kind or <code>-1</code> when unknown.
+	 */
+	public void add(final int[] regions, final double[] values, final int kind) {
+		for (var i = 0; i < regions.length; i++) {
+			add(regions[i], kind, values[i]);
+		}
+	}
+
+	/**
+	 * Add a global cost.
+	 *
+	 * @param kind  The cost kind or <code>-1</code> when unknown.
+	 * @param value The cost to add.
+	 */
+	public void addGlobal(final int kind, final double value) {
+		if (kind >= 0) {
+			global[kind] += value;
+		}
+	}
+
+	/**
+	 * Return the next region having a cost.
+	 *
+	 * @param from The region identifier to start from, inclusive.
+	 * @return The next region having a cost or <code>-1</code>.
+	 */
+	public int nextRegion(final int from) {
+		return regions.nextSetBit(from);
+	}
+
+	/**
+	 * Return the global monthly cost.
+	 *
+	 * @param cpu        The CPU amount of the instance type.
+	 * @param hoursMonth The hours per month.
+	 * @return The global monthly cost.
+	 */
+	public double getGlobalMonthlyCost(final double cpu, final double hoursMonth) {
+		return toMonthlyCost(global[AbstractAzureImport.PER_CORE], global[AbstractAzureImport.PER_HOUR],
+				global[AbstractAzureImport.PER_MONTH], cpu, hoursMonth);
+	}
+
+	/**
+	 * Return the monthly cost of a region, without the global cost.
+	 *
+	 * @param region     The region identifier.
+	 * @param cpu        The CPU amount of the instance type.
+	 * @param hoursMonth The hours per month.
+	 * @return The regional monthly cost.
+	 */
+	public double getMonthlyCost(final int region, final double cpu, final double hoursMonth) {
+		final var offset = region * 3;
+		return toMonthlyCost(costs[offset + AbstractAzureImport.PER_CORE], costs[offset + AbstractAzureImport.PER_HOUR],
+				costs[offset + AbstractAzureImport.PER_MONTH], cpu, hoursMonth);
+	}
+
+	private double toMonthlyCost(final double perCore, final double perHour, final double perMonth, final double cpu,
+			final double hoursMonth) {
+		return perMonth + (perHour + perCore * cpu) * hoursMonth;
+	}
+}
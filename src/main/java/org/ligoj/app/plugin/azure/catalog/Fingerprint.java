@@ -0,0 +1,75 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+/**
+ * 64 bits FNV-1a fingerprint helpers, used to detect the unchanged SKUs between two imports. The values are hashed
+ * byte per byte: a <code>long</code> as its 8 bytes, a <code>String</code> as the 2 bytes of each char followed by its
+ * length.
+ */
+public final class Fingerprint {
+
+	/**
+	 * The initial fingerprint, the FNV-1a offset basis.
+	 */
+	public static final long SEED = 0xcbf29ce484222325L;
+
+	private static final long PRIME = 0x100000001b3L;
+
+	private Fingerprint() {
+		// Utility class
+	}
+
+	/**
+	 * Mix a byte into a fingerprint.
+	 */
+	private static long mixByte(final long fingerprint, final long value) {
+		return (fingerprint ^ (value & 0xff)) * PRIME;
+	}
+
+	/**
+	 * Mix a value into a fingerprint.
+	 *
+	 * @param fingerprint The current fingerprint.
+	 * @param value       The value to mix.
+	 * @return The new fingerprint.
+	 */
+	public static long mix(final long fingerprint, final long value) {
+		var result = fingerprint;
+		for (var shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+			result = mixByte(result, value >>> shift);
+		}
+		return result;
+	}
+
+	/**
+	 * Mix a value into a fingerprint.
+	 *
+	 * @param fingerprint The current fingerprint.
+	 * @param value       The value to mix.
+	 * @return The new fingerprint.
+	 */
+	public static long mix(final long fingerprint, final double value) {
+		return mix(fingerprint, Double.doubleToLongBits(value));
+	}
+
+	/**
+	 * Mix a value into a fingerprint. The length terminates the value, so consecutive values cannot be confused.
+	 *
+	 * @param fingerprint The current fingerprint.
+	 * @param value       The value to mix, may be <code>null</code>.
+	 * @return The new fingerprint.
+	 */
+	public static long mix(final long fingerprint, final String value) {
+		if (value == null) {
+			return mix(fingerprint, -1L);
+		}
+		var result = fingerprint;
+		for (var i = 0; i < value.length(); i++) {
+			final var c = value.charAt(i);
+			result = mixByte(mixByte(result, c), c >>> Byte.SIZE);
+		}
+		return mix(result, value.length());
+	}
+}
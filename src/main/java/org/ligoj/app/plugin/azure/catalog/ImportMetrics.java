@@ -0,0 +1,190 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Metrics of an import: the duration of each step, the price counters by price type and the catalog payloads. Safe
+ * for the concurrent workers.
+ */
+public class ImportMetrics {
+
+	/**
+	 * Price counter of inserted prices.
+	 */
+	public static final String INSERTED = "inserted";
+
+	/**
+	 * Price counter of updated prices.
+	 */
+	public static final String UPDATED = "updated";
+
+	/**
+	 * Price counter of unchanged prices.
+	 */
+	public static final String UNCHANGED = "unchanged";
+
+	/**
+	 * Price counter of purged prices.
+	 */
+	public static final String PURGED = "purged";
+
+	private final Map<String, Long> durations = new ConcurrentHashMap<>();
+
+	private final Map<String, Long> starts = new ConcurrentHashMap<>();
+
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+	/**
+	 * The payload of each catalog URL.
+	 */
+	@Getter
+	private final Map<String, Payload> payloads = new ConcurrentHashMap<>();
+
+	private String step;
+
+	private long stepStart;
+
+	/**
+	 * Start a new step, the running one is ended.
+	 *
+	 * @param name The step name. When <code>null</code>, no new step is started.
+	 */
+	public synchronized void step(final String name) {
+		final var now = System.nanoTime();
+		if (step != null) {
+			durations.merge(step, now - stepStart, Long::sum);
+		}
+		step = name;
+		stepStart = now;
+		if (name != null) {
+			starts.putIfAbsent(name, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Return the time a step has been started first.
+	 *
+	 * @param name The step name.
+	 * @return The start time in milliseconds since the epoch, <code>0</code> when never started.
+	 */
+	public long getStart(final String name) {
+		return starts.getOrDefault(name, 0L);
+	}
+
+	/**
+	 * Increment a counter.
+	 *
+	 * @param name  The counter name.
+	 * @param delta The value to add.
+	 */
+	public void increment(final String name, final long delta) {
+		counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+	}
+
+	/**
+	 * Increment a price counter.
+	 *
+	 * @param type    The price type such as <code>instance</code>, <code>database</code> or <code>storage</code>.
+	 * @param counter The counter: {@value #INSERTED}, {@value #UPDATED}, {@value #UNCHANGED} or {@value #PURGED}.
+	 * @param delta   The value to add.
+	 */
+	public void increment(final String type, final String counter, final long delta) {
+		increment(type + "-" + counter, delta);
+	}
+
+	/**
+	 * Return the value of a counter.
+	 *
+	 * @param name The counter name.
+	 * @return The counter value, <code>0</code> when never incremented.
+	 */
+	public long get(final String name) {
+		final var counter = counters.get(name);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	/**
+	 * Return the counters.
+	 *
+	 * @return The counters by name, ordered by name.
+	 */
+	public Map<String, Long> getCounters() {
+		final var result = new TreeMap<String, Long>();
+		counters.forEach((k, v) -> result.put(k, v.sum()));
+		return result;
+	}
+
+	/**
+	 * Return the duration of the ended steps.
+	 *
+	 * @return The durations in milliseconds by step name, ordered by name.
+	 */
+	public Map<String, Long> getDurations() {
+		final var result = new TreeMap<String, Long>();
+		durations.forEach((k, v) -> result.put(k, v / 1_000_000));
+		return result;
+	}
+
+	/**
+	 * Return the payload of a catalog URL.
+	 *
+	 * @param url The catalog URL.
+	 * @return The payload, created as needed.
+	 */
+	public Payload getPayload(final String url) {
+		return payloads.computeIfAbsent(url, u -> new Payload());
+	}
+
+	@Override
+	public String toString() {
+		return "durations=" + getDurations() + ", counters=" + getCounters() + ", payloads=" + new TreeMap<>(payloads);
+	}
+
+	/**
+	 * The payload of a catalog.
+	 */
+	@Getter
+	@Setter
+	public static class Payload {
+
+		/**
+		 * The received bytes, compressed or not.
+		 */
+		private long wireBytes;
+
+		/**
+		 * The decompressed bytes.
+		 */
+		private long bytes;
+
+		/**
+		 * The download start time in milliseconds since the epoch.
+		 */
+		private long downloadStart;
+
+		/**
+		 * The download duration in milliseconds.
+		 */
+		private long downloadTime;
+
+		/**
+		 * The parsing duration in milliseconds.
+		 */
+		private long parseTime;
+
+		@Override
+		public String toString() {
+			return "{wire=" + wireBytes + ", bytes=" + bytes + ", download=" + downloadTime + "ms, parse=" + parseTime
+					+ "ms}";
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import org.apache.commons.lang3.function.FailableRunnable;
+import org.hibernate.Session;
+import org.ligoj.app.plugin.prov.model.AbstractPrice;
+import org.ligoj.app.plugin.prov.model.ProvDatabaseType;
+import org.ligoj.app.plugin.prov.model.ProvInstancePriceTerm;
+import org.ligoj.app.plugin.prov.model.ProvInstanceType;
+import org.ligoj.app.plugin.prov.model.ProvLocation;
+import org.ligoj.app.plugin.prov.model.ProvStorageType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Persistable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Transactions of an import: the phase transactions and the eviction of the persistence context. The transaction
+ * boundaries are only the phases, so a committed phase has its checkpoint, and the evictions never commit.
+ */
+@Slf4j
+@Component
+public class ImportTransactions {
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * Run a phase of the import. When enabled, this phase runs in its own transaction, so its prices and its checkpoint
+	 * are committed even when a next phase fails.
+	 *
+	 * @param context The current import context.
+	 * @param phase   The phase to run.
+	 * @throws IOException When prices cannot be remotely read.
+	 */
+	public void runPhase(final UpdateContext context, final FailableRunnable<IOException> phase) throws IOException {
+		if (!context.isPhaseTransaction()) {
+			phase.run();
+			return;
+		}
+		runTransaction(() -> {
+			context.getWriter().attach();
+			phase.run();
+		});
+	}
+
+	/**
+	 * Run the given task in a new transaction.
+	 *
+	 * @param task The task to run.
+	 * @throws IOException When prices cannot be remotely read.
+	 */
+	public void runTransaction(final FailableRunnable<IOException> task) throws IOException {
+		final var template = new TransactionTemplate(transactionManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		try {
+			template.executeWithoutResult(s -> {
+				try {
+					task.run();
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Clear the persistence context, then attach again the shared entities of the context: locations, terms and types.
+	 * The pending prices must be flushed. The previous prices already written by this import are released too, only
+	 * their identifier is kept. The maps keyed by these entities are keyed again by the attached ones.
+	 *
+	 * @param context The current import context.
+	 */
+	public void evict(final UpdateContext context) {
+		final var start = System.currentTimeMillis();
+		em.clear();
+		var released = release(context, context.getPrevious()) + release(context, context.getPreviousDatabase())
+				+ release(context, context.getPreviousStorage());
+		if (context.getPreviousStorages() != null) {
+			for (final var prices : context.getPreviousStorages().values()) {
+				released += release(context, prices);
+			}
+		}
+		final var attached = new IdentityHashMap<Object, Object>();
+		reattach(context.getRegions(), ProvLocation.class, attached);
+		reattach(context.getMergedRegions(), ProvLocation.class, attached);
+		reattach(context.getPriceTerms(), ProvInstancePriceTerm.class, attached);
+		reattach(context.getInstanceTypes(), ProvInstanceType.class, attached);
+		reattach(context.getDatabaseTypes(), ProvDatabaseType.class, attached);
+		reattach(context.getStorageTypes(), ProvStorageType.class, attached);
+		reattach(context.getStorageTypesStatic(), ProvStorageType.class, attached);
+		if (context.getPreviousStorages() != null) {
+			context.getPreviousStorages().values().forEach(p -> rekey(p, attached));
+			rekey(context.getPreviousStorages(), attached);
+		}
+		context.getMetrics().increment("released", released);
+		log.info("Azure persistence context evicted, {} previous prices released, {} shared entities attached in {}ms",
+				released, attached.size(), System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Remove the written prices from the given previous prices, and keep their identifier.
+	 *
+	 * @return The amount of released prices.
+	 */
+	private <T extends AbstractPrice<?>> int release(final UpdateContext context, final Map<?, T> previous) {
+		if (previous == null) {
+			return 0;
+		}
+		final var before = previous.size();
+		previous.values().removeIf(p -> {
+			if (p.getId() == null || !context.getPrices().contains(p.getCode())) {
+				// Not yet written, or retired
+				return false;
+			}
+			context.getReleased(p.getClass()).put(p.getCode(), p.getId());
+			return true;
+		});
+		return before - previous.size();
+	}
+
+	/**
+	 * Replace the detached entities by the managed ones, loaded by batches from their identifiers.
+	 */
+	private <T extends Persistable<Integer>> void reattach(final Map<?, T> entities, final Class<T> type,
+			final Map<Object, Object> attached) {
+		if (entities == null || entities.isEmpty()) {
+			return;
+		}
+		final var ids = entities.values().stream().map(Persistable::getId).filter(Objects::nonNull).distinct()
+				.toList();
+		final var byId = em.unwrap(Session.class).byMultipleIds(type).multiLoad(ids).stream()
+				.filter(Objects::nonNull).collect(Collectors.toMap(Persistable::getId, Function.identity()));
+		entities.replaceAll((k, v) -> {
+			final var managed = byId.getOrDefault(v.getId(), v);
+			attached.put(v, managed);
+			return managed;
+		});
+	}
+
+	/**
+	 * Replace in place the detached keys by the attached ones.
+	 */
+	@SuppressWarnings("unchecked")
+	private <K, V> void rekey(final Map<K, V> map, final Map<Object, Object> attached) {
+		final var copy = new HashMap<>(map);
+		map.clear();
+		copy.forEach((k, v) -> map.put((K) attached.getOrDefault(k, k), v));
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import org.hibernate.Session;
+import org.ligoj.app.plugin.azure.dao.ProvAzureKeptPriceRepository;
+import org.ligoj.app.plugin.azure.model.ProvAzureKeptPrice;
+import org.ligoj.app.plugin.prov.model.AbstractPrice;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Set based purge of the prices not installed by an import. The price codes installed by this import are written in
+ * the kept price table, then the other prices are deleted by a single statement per price type.
+ */
+@Slf4j
+@Component
+public class KeptPricePurge {
+
+	/**
+	 * Amount of kept price codes inserted in a single JDBC batch.
+	 */
+	private static final int KEPT_BATCH_SIZE = 1000;
+
+	@Autowired
+	private ProvAzureKeptPriceRepository repository;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * Purge the instance prices not installed by this import.
+	 *
+	 * @param context The current import context.
+	 */
+	public void purgeInstancePrices(final UpdateContext context) {
+		purge(context, "instance", () -> detach(context, context.getPrevious(), p -> true),
+				repository::purgeInstancePrices);
+	}
+
+	/**
+	 * Purge the database prices of an engine not installed by this import.
+	 *
+	 * @param context The current import context.
+	 * @param engine  The database engine.
+	 */
+	public void purgeDatabasePrices(final UpdateContext context, final String engine) {
+		purge(context, engine, () -> detach(context, context.getPreviousDatabase(), p -> engine.equals(p.getEngine())),
+				n -> repository.purgeDatabasePrices(n, engine));
+	}
+
+	/**
+	 * Purge the storage prices not installed by this import.
+	 *
+	 * @param context The current import context.
+	 */
+	public void purgeStoragePrices(final UpdateContext context) {
+		purge(context, "storage", () -> {
+			detach(context, context.getPreviousStorage(), p -> true);
+			if (context.getPreviousStorages() != null) {
+				context.getPreviousStorages().values().forEach(p -> detach(context, p, x -> true));
+			}
+		}, repository::purgeStoragePrices);
+	}
+
+	/**
+	 * Purge the prices not installed by this import with a single set based statement. The price codes installed
+	 * since the previous purge are first written in the kept price table of this node. The bulk statement bypasses the
+	 * persistence context, so the pending changes are flushed and the purged prices are detached before.
+	 *
+	 * @param context The current import context.
+	 * @param name    The purged price type name, for the logs.
+	 * @param detach  The release of the previous prices of this type not installed by this import.
+	 * @param purge   The set based purge, from the node identifier to the amount of deleted prices.
+	 */
+	private void purge(final UpdateContext context, final String name, final Runnable detach,
+			final ToIntFunction<String> purge) {
+		final var start = System.currentTimeMillis();
+		final var node = context.getNode().getId();
+		insertKept(context, node);
+		em.flush();
+		detach.run();
+		final var deleted = purge.applyAsInt(node);
+		log.info("Azure {} prices purged : {} rows in {}ms", name, deleted, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Insert the price codes installed since the previous purge with a stateless session sharing the connection, so the
+	 * same transaction. The pending JDBC batch is executed when this session is closed.
+	 */
+	private void insertKept(final UpdateContext context, final String node) {
+		final var written = context.getKeptCodes();
+		final var current = em.unwrap(Session.class);
+		current.doWork(connection -> {
+			try (var stateless = current.getSessionFactory().withStatelessOptions().connection(connection)
+					.openStatelessSession()) {
+				stateless.setJdbcBatchSize(KEPT_BATCH_SIZE);
+				context.getPrices().stream().filter(written::add).forEach(code -> {
+					final var kept = new ProvAzureKeptPrice();
+					kept.setNode(node);
+					kept.setCode(code);
+					stateless.insert(kept);
+				});
+			}
+		});
+	}
+
+	/**
+	 * Remove from the given previous prices the ones not installed by this import, and detach them. These prices are
+	 * either deleted by the purge, or used by a quote and no longer updated.
+	 */
+	private <T extends AbstractPrice<?>> void detach(final UpdateContext context, final Map<?, T> previous,
+			final Predicate<T> filter) {
+		if (previous == null) {
+			return;
+		}
+		previous.values().removeIf(p -> {
+			if (!filter.test(p) || context.getPrices().contains(p.getCode())) {
+				return false;
+			}
+			em.detach(p);
+			return true;
+		});
+	}
+
+	/**
+	 * Delete the kept price codes of the node of this import.
+	 *
+	 * @param context The current import context.
+	 */
+	public void clear(final UpdateContext context) {
+		repository.deleteByNode(context.getNode().getId());
+		context.getKeptCodes().clear();
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+/**
+ * Compute tasks in a fork-join pool, and apply their results in the submission order by the calling thread. The
+ * amount of computed results waiting to be applied is bounded. Once closed, no task is running and no more result is
+ * applied.
+ */
+public class OrderedPipeline implements AutoCloseable {
+
+	private final ForkJoinPool pool;
+
+	private final Deque<ForkJoinTask<List<Runnable>>> pending = new ArrayDeque<>();
+
+	private final int maxPending;
+
+	/**
+	 * When <code>true</code>, the tasks not yet started are skipped.
+	 */
+	private volatile boolean aborted;
+
+	/**
+	 * Create a pipeline with the given parallelism.
+	 *
+	 * @param parallelism The amount of worker threads.
+	 */
+	public OrderedPipeline(final int parallelism) {
+		this.pool = new ForkJoinPool(parallelism);
+		this.maxPending = parallelism * 2;
+	}
+
+	/**
+	 * Submit a task computing the writes to apply. Completed writes of the previous tasks are applied by the calling
+	 * thread while too many are pending.
+	 *
+	 * @param task The task computing the writes, executed by a worker thread.
+	 */
+	public void submit(final Supplier<List<Runnable>> task) {
+		pending.add(pool.submit(ForkJoinTask.adapt(() -> aborted ? List.<Runnable>of() : task.get())));
+		while (pending.size() > maxPending) {
+			applyNext();
+		}
+	}
+
+	/**
+	 * Wait for all submitted tasks and apply their writes in the submission order.
+	 */
+	public void drain() {
+		while (!pending.isEmpty()) {
+			applyNext();
+		}
+	}
+
+	private void applyNext() {
+		pending.poll().join().forEach(Runnable::run);
+	}
+
+	/**
+	 * Abort the remaining tasks after a failure, and wait for the running ones: they may still update the shared
+	 * structures of the context.
+	 */
+	@Override
+	public void close() {
+		aborted = true;
+		pending.forEach(t -> t.cancel(true));
+		pending.clear();
+		pool.shutdownNow();
+		pool.close();
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.util.Arrays;
+
+/**
+ * Character trie resolving the values of the keys found in a text, without creating any string. Built once, then
+ * read concurrently.
+ *
+ * @param <V> The value type.
+ */
+public class PrefixTrie<V> {
+
+	private final boolean ignoreCase;
+
+	private final Node<V> root = new Node<>();
+
+	/**
+	 * Create an empty trie.
+	 *
+	 * @param ignoreCase When <code>true</code>, the keys are matched ignoring the case.
+	 */
+	public PrefixTrie(final boolean ignoreCase) {
+		this.ignoreCase = ignoreCase;
+	}
+
+	/**
+	 * Associate a value to a key. The previous value of this key is replaced.
+	 *
+	 * @param key   The key.
+	 * @param value The value, not <code>null</code>.
+	 */
+	public void put(final CharSequence key, final V value) {
+		var node = root;
+		for (var i = 0; i < key.length(); i++) {
+			node = node.getOrAdd(toChar(key.charAt(i)));
+		}
+		node.value = value;
+	}
+
+	/**
+	 * Return the value of the longest key being a prefix of the text.
+	 *
+	 * @param text The text to match.
+	 * @param from The first character of the text to match.
+	 * @return The value of the longest matching key, or <code>null</code>.
+	 */
+	public V getLongestPrefix(final CharSequence text, final int from) {
+		var node = root;
+		var result = node.value;
+		for (var i = from; i < text.length() && node != null; i++) {
+			node = node.get(toChar(text.charAt(i)));
+			if (node != null && node.value != null) {
+				result = node.value;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the value of the key equal to a part of the text.
+	 *
+	 * @param text The text to match.
+	 * @param from The first character of the key, inclusive.
+	 * @param to   The last character of the key, exclusive.
+	 * @return The value of the matching key, or <code>null</code>.
+	 */
+	public V get(final CharSequence text, final int from, final int to) {
+		var node = root;
+		for (var i = from; i < to && node != null; i++) {
+			node = node.get(toChar(text.charAt(i)));
+		}
+		return node == null ? null : node.value;
+	}
+
+	private char toChar(final char c) {
+		return ignoreCase ? Character.toLowerCase(c) : c;
+	}
+
+	/**
+	 * Trie node, the children are stored in arrays ordered by character.
+	 */
+	private static class Node<V> {
+
+		private char[] keys = new char[0];
+
+		private Node<V>[] children = newNodes(0);
+
+		private V value;
+
+		@SuppressWarnings("unchecked")
+		private static <V> Node<V>[] newNodes(final int size) {
+			return new Node[size];
+		}
+
+		private Node<V> get(final char c) {
+			final var index = Arrays.binarySearch(keys, c);
+			return index < 0 ? null : children[index];
+		}
+
+		private Node<V> getOrAdd(final char c) {
+			final var index = Arrays.binarySearch(keys, c);
+			if (index >= 0) {
+				return children[index];
+			}
+			final var insert = -index - 1;
+			final var newKeys = new char[keys.length + 1];
+			final Node<V>[] newChildren = newNodes(keys.length + 1);
+			System.arraycopy(keys, 0, newKeys, 0, insert);
+			System.arraycopy(children, 0, newChildren, 0, insert);
+			System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+			System.arraycopy(children, insert, newChildren, insert + 1, keys.length - insert);
+			newKeys[insert] = c;
+			newChildren[insert] = new Node<>();
+			keys = newKeys;
+			children = newChildren;
+			return newChildren[insert];
+		}
+	}
+}
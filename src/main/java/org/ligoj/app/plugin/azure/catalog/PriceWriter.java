@@ -0,0 +1,320 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import jakarta.persistence.EntityManager;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
+import org.ligoj.app.plugin.prov.model.AbstractPrice;
+import org.ligoj.app.plugin.prov.model.AbstractTermPrice;
+import org.ligoj.bootstrap.core.dao.RestRepository;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Batched price writer. The written prices are flushed by batches using the JDBC batching, then detached from the
+ * persistence context. The shared entities such as types, terms and locations remain attached. When an eviction size
+ * is set, the whole persistence context is periodically cleared to keep the memory bounded. On a first install, the
+ * new prices are inserted by a stateless session, without any persistence context. Such inserts skip the JPA
+ * lifecycle callbacks, the entity listeners and the interceptors of the price entities.
+ */
+@Slf4j
+public class PriceWriter implements AutoCloseable {
+
+	private final EntityManager em;
+
+	private final Session session;
+
+	private final Integer previousBatchSize;
+
+	/**
+	 * The maximal amount of prices pending in the persistence context.
+	 */
+	@Getter
+	private final int batchSize;
+
+	private final List<Object> pending = new ArrayList<>();
+
+	/**
+	 * The new prices waiting for their stateless insert, in the write order.
+	 */
+	private final List<Object> inserts = new ArrayList<>();
+
+	private final Set<Object> insertSet = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * The updated projections of the previous prices, by type and identifier. Their managed entities are loaded by a
+	 * single query per type with the next batch.
+	 */
+	private final Map<Class<?>, Map<Integer, AbstractTermPrice<?>>> projections = new LinkedHashMap<>();
+
+	/**
+	 * Amount of updated projections waiting for the next batch.
+	 */
+	private int projectionCount;
+
+	/**
+	 * When <code>true</code>, there is no previous price to update, and the new prices are inserted without the
+	 * persistence context.
+	 */
+	@Getter
+	@Setter
+	private boolean fresh;
+
+	/**
+	 * When <code>false</code>, the new prices of a first install are persisted with the persistence context, so their
+	 * lifecycle callbacks are run.
+	 */
+	@Getter
+	@Setter
+	private boolean stateless = true;
+
+	/**
+	 * The amount of written prices between two evictions of the persistence context. <code>0</code> disables the
+	 * eviction.
+	 */
+	@Getter
+	private final int evictSize;
+
+	/**
+	 * The eviction of the persistence context, attaching again the shared entities.
+	 */
+	@Setter
+	private Runnable evictor = () -> {
+		// Nothing to attach by default
+	};
+
+	/**
+	 * Amount of written prices since the last eviction.
+	 */
+	private int sinceEviction;
+
+	/**
+	 * The metrics receiving the price counters.
+	 */
+	@Setter
+	private ImportMetrics metrics = new ImportMetrics();
+
+	/**
+	 * Amount of written prices since the last report.
+	 */
+	@Getter
+	private long written;
+
+	/**
+	 * Elapsed time in nanoseconds to write the prices since the last report.
+	 */
+	private long elapsed;
+
+	/**
+	 * Create a writer attached to the given entity manager.
+	 *
+	 * @param em        The current entity manager.
+	 * @param batchSize The maximal amount of prices pending in the persistence context.
+	 */
+	public PriceWriter(final EntityManager em, final int batchSize) {
+		this(em, batchSize, 0);
+	}
+
+	/**
+	 * Create a writer attached to the given entity manager, bounding the size of the persistence context.
+	 *
+	 * @param em        The current entity manager.
+	 * @param batchSize The maximal amount of prices pending in the persistence context.
+	 * @param evictSize The amount of written prices between two evictions of the persistence context. <code>0</code>
+	 *                  disables the eviction.
+	 */
+	public PriceWriter(final EntityManager em, final int batchSize, final int evictSize) {
+		this.em = em;
+		this.batchSize = Math.max(1, batchSize);
+		this.evictSize = Math.max(0, evictSize);
+		this.session = em.unwrap(Session.class);
+		this.previousBatchSize = session.getJdbcBatchSize();
+		session.setJdbcBatchSize(this.batchSize);
+	}
+
+	/**
+	 * Persist or merge the given price. The statement is executed with the next batch.
+	 *
+	 * @param <T>        The price type.
+	 * @param price      The price to write.
+	 * @param repository The repository of this price.
+	 */
+	public <T extends AbstractPrice<?>> void save(final T price, final RestRepository<T, Integer> repository) {
+		final var start = System.nanoTime();
+		if (fresh && stateless && price.isNew()) {
+			// Inserted once with its final costs, even when updated before the next batch
+			if (insertSet.add(price)) {
+				inserts.add(price);
+				metrics.increment(toPriceType(price), ImportMetrics.INSERTED, 1);
+			}
+		} else {
+			metrics.increment(toPriceType(price), price.isNew() ? ImportMetrics.INSERTED : ImportMetrics.UPDATED, 1);
+			pending.add(repository.save(price));
+		}
+		written++;
+		flushFull();
+		elapsed += System.nanoTime() - start;
+	}
+
+	/**
+	 * Update the costs of a previous price loaded as a projection. The managed entity is loaded with the next batch,
+	 * then updated with the costs of the projection at this time.
+	 *
+	 * @param <T>   The price type.
+	 * @param price The updated projection, with an identifier.
+	 */
+	public <T extends AbstractTermPrice<?>> void saveCosts(final T price) {
+		final var start = System.nanoTime();
+		metrics.increment(toPriceType(price), ImportMetrics.UPDATED, 1);
+		if (projections.computeIfAbsent(price.getClass(), t -> new LinkedHashMap<>()).put(price.getId(),
+				price) == null) {
+			projectionCount++;
+		}
+		written++;
+		flushFull();
+		elapsed += System.nanoTime() - start;
+	}
+
+	private void flushFull() {
+		if (pending.size() + inserts.size() + projectionCount >= batchSize) {
+			flushBatch(false);
+		}
+	}
+
+	/**
+	 * Return the type name of a price: <code>ProvInstancePrice</code> is <code>instance</code>.
+	 *
+	 * @param price The price.
+	 * @return The price type name.
+	 */
+	public static String toPriceType(final Object price) {
+		return StringUtils.removeEnd(StringUtils.removeStart(price.getClass().getSimpleName(), "Prov"), "Price")
+				.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Flush the pending prices.
+	 */
+	public void flush() {
+		final var start = System.nanoTime();
+		flushBatch(false);
+		elapsed += System.nanoTime() - start;
+	}
+
+	/**
+	 * Flush the pending prices and evict the persistence context when some prices have been written since the last
+	 * eviction.
+	 */
+	public void evict() {
+		final var start = System.nanoTime();
+		flushBatch(true);
+		elapsed += System.nanoTime() - start;
+	}
+
+	/**
+	 * Apply the batch size to the session of the current transaction.
+	 */
+	public void attach() {
+		em.unwrap(Session.class).setJdbcBatchSize(batchSize);
+	}
+
+	/**
+	 * Load the managed entities of the updated projections, by batches, and copy their costs.
+	 */
+	private void loadProjections() {
+		final var current = em.unwrap(Session.class);
+		projections.forEach((type, prices) -> {
+			final List<?> managed = current.byMultipleIds(type).withBatchSize(batchSize)
+					.multiLoad(List.copyOf(prices.keySet()));
+			managed.stream().filter(AbstractTermPrice.class::isInstance).map(AbstractTermPrice.class::cast)
+					.forEach(m -> {
+						final var price = prices.get(m.getId());
+						m.setCost(price.getCost());
+						m.setCostPeriod(price.getCostPeriod());
+						pending.add(m);
+					});
+		});
+		projections.clear();
+		projectionCount = 0;
+	}
+
+	private void flushBatch(final boolean evict) {
+		if (projectionCount > 0) {
+			loadProjections();
+		}
+		if (!pending.isEmpty() || !inserts.isEmpty()) {
+			// The new shared entities are flushed before the prices referencing them
+			em.flush();
+			insertBatch();
+			sinceEviction += pending.size();
+			metrics.increment("batches", 1);
+		}
+		if (evictSize > 0 && sinceEviction > 0 && (evict || sinceEviction >= evictSize)) {
+			// The loaded entities are released too, not only the written prices
+			sinceEviction = 0;
+			pending.clear();
+			metrics.increment("evictions", 1);
+			evictor.run();
+			attach();
+		} else {
+			pending.forEach(em::detach);
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Insert the new prices with a stateless session sharing the connection, so the same transaction. The pending JDBC
+	 * batch is executed when this session is closed. The lifecycle callbacks of the prices are not run.
+	 */
+	private void insertBatch() {
+		if (inserts.isEmpty()) {
+			return;
+		}
+		final var current = em.unwrap(Session.class);
+		current.doWork(connection -> {
+			try (var stateless = current.getSessionFactory().withStatelessOptions().connection(connection)
+					.openStatelessSession()) {
+				stateless.setJdbcBatchSize(batchSize);
+				inserts.forEach(stateless::insert);
+			}
+		});
+		sinceEviction += inserts.size();
+		inserts.clear();
+		insertSet.clear();
+	}
+
+	/**
+	 * Flush the pending prices, evict the persistence context as needed and log the write throughput since the previous
+	 * report.
+	 *
+	 * @param phase The reported phase name.
+	 */
+	public void report(final String phase) {
+		evict();
+		final var millis = Math.max(1, elapsed / 1_000_000);
+		log.info("Azure {} prices written : {} rows in {}ms, {} rows/s", phase, written, millis,
+				written * 1000 / millis);
+		written = 0;
+		elapsed = 0;
+	}
+
+	@Override
+	public void close() {
+		flush();
+		session.setJdbcBatchSize(previousBatchSize);
+	}
+}
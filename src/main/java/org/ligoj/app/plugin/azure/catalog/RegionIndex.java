@@ -0,0 +1,89 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dense identifiers of the Azure regions, shared by all catalogs of an import. The identifiers are the indexes of the
+ * {@link RegionPrices} vectors.
+ */
+public class RegionIndex {
+
+	/**
+	 * The pseudo region used for prices not depending on the region.
+	 */
+	public static final String GLOBAL = "global";
+
+	/**
+	 * Identifier of the {@value #GLOBAL} pseudo region.
+	 */
+	public static final int GLOBAL_ID = 0;
+
+	private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+	private volatile String[] names = new String[64];
+
+	private int size;
+
+	/**
+	 * Default constructor registering the {@value #GLOBAL} pseudo region.
+	 */
+	public RegionIndex() {
+		register(GLOBAL);
+	}
+
+	/**
+	 * Return the identifier of the given region, registering it when not yet known.
+	 *
+	 * @param name The region name.
+	 * @return The region identifier.
+	 */
+	public int register(final String name) {
+		final var id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			return ids.computeIfAbsent(name, n -> {
+				if (size == names.length) {
+					names = Arrays.copyOf(names, size * 2);
+				}
+				names[size] = n;
+				return size++;
+			});
+		}
+	}
+
+	/**
+	 * Return the identifier of the given region.
+	 *
+	 * @param name The region name.
+	 * @return The region identifier or <code>-1</code> when unknown.
+	 */
+	public int getId(final String name) {
+		return ids.getOrDefault(name, -1);
+	}
+
+	/**
+	 * Return the name of the given region.
+	 *
+	 * @param id The region identifier.
+	 * @return The region name.
+	 */
+	public String getName(final int id) {
+		return names[id];
+	}
+
+	/**
+	 * Return the amount of registered regions, including the {@value #GLOBAL} one.
+	 *
+	 * @return The amount of registered regions.
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
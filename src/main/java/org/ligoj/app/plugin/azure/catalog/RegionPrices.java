@@ -0,0 +1,107 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.util.Arrays;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * Prices of a single offer tier, indexed by the region identifier of {@link RegionIndex}. Missing prices are
+ * <code>NaN</code>.
+ */
+@JsonDeserialize(using = RegionPricesDeserializer.class)
+public class RegionPrices {
+
+	/**
+	 * Prices consumer.
+	 */
+	@FunctionalInterface
+	public interface RegionPriceConsumer {
+
+		/**
+		 * Performs the operation given the specified price.
+		 *
+		 * @param region The region identifier.
+		 * @param value  The price.
+		 */
+		void accept(int region, double value);
+	}
+
+	private double[] values;
+
+	/**
+	 * Empty prices constructor.
+	 */
+	public RegionPrices() {
+		this(0);
+	}
+
+	/**
+	 * Constructor with an initial capacity.
+	 *
+	 * @param capacity The initial capacity, usually the size of the {@link RegionIndex}.
+	 */
+	public RegionPrices(final int capacity) {
+		values = new double[capacity];
+		Arrays.fill(values, Double.NaN);
+	}
+
+	/**
+	 * Return the price of the given region.
+	 *
+	 * @param region The region identifier.
+	 * @return The price of the given region or <code>NaN</code>.
+	 */
+	public double get(final int region) {
+		return region >= 0 && region < values.length ? values[region] : Double.NaN;
+	}
+
+	/**
+	 * Indicate the given region has a price.
+	 *
+	 * @param region The region identifier.
+	 * @return <code>true</code> when the given region has a price.
+	 */
+	public boolean has(final int region) {
+		return !Double.isNaN(get(region));
+	}
+
+	/**
+	 * Set the price of the given region.
+	 *
+	 * @param region The region identifier.
+	 * @param value  The price.
+	 */
+	public void put(final int region, final double value) {
+		if (region >= values.length) {
+			final var length = values.length;
+			values = Arrays.copyOf(values, Math.max(region + 1, length * 2));
+			Arrays.fill(values, length, values.length, Double.NaN);
+		}
+		values[region] = value;
+	}
+
+	/**
+	 * Return the upper bound of the region identifiers having a price.
+	 *
+	 * @return The upper bound, exclusive, of the region identifiers having a price.
+	 */
+	public int length() {
+		return values.length;
+	}
+
+	/**
+	 * Iterate over the available prices by region identifier.
+	 *
+	 * @param consumer The price consumer.
+	 */
+	public void forEach(final RegionPriceConsumer consumer) {
+		for (var region = 0; region < values.length; region++) {
+			if (!Double.isNaN(values[region])) {
+				consumer.accept(region, values[region]);
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+/**
+ * Read the prices by region, like <code>{"europe-north":{"value":0.1},"europe-west":{"value":0.2}}</code>, into a
+ * {@link RegionPrices} without intermediate objects. The {@link RegionIndex} is read from the
+ * {@link DeserializationContext} attribute {@link RegionIndex} class.
+ */
+public class RegionPricesDeserializer extends StdDeserializer<RegionPrices> {
+
+	/**
+	 * SID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default constructor.
+	 */
+	public RegionPricesDeserializer() {
+		super(RegionPrices.class);
+	}
+
+	@Override
+	public RegionPrices deserialize(final JsonParser parser, final DeserializationContext ctxt) throws IOException {
+		final var index = (RegionIndex) ctxt.getAttribute(RegionIndex.class);
+		if (index == null) {
+			return ctxt.reportInputMismatch(RegionPrices.class, "No region index attribute available");
+		}
+		final var prices = new RegionPrices(index.size());
+		if (parser.currentToken() == JsonToken.START_OBJECT) {
+			parser.nextToken();
+		}
+		for (; parser.currentToken() == JsonToken.FIELD_NAME; parser.nextToken()) {
+			final var region = index.register(parser.currentName());
+			parser.nextToken();
+			final var value = readValue(parser);
+			if (!Double.isNaN(value)) {
+				prices.put(region, value);
+			}
+		}
+		return prices;
+	}
+
+	/**
+	 * Read the <code>value</code> property of a price object. A value that is not a number is a missing price.
+	 */
+	private double readValue(final JsonParser parser) throws IOException {
+		var value = Double.NaN;
+		if (parser.currentToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final var name = parser.currentName();
+				parser.nextToken();
+				if ("value".equals(name) && parser.currentToken().isNumeric()) {
+					value = parser.getDoubleValue();
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} else {
+			parser.skipChildren();
+		}
+		return value;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A resolved SKU component, like <code>linux-a1-basic--perhour</code>: the offer, the cost counter of the pricing tier
+ * and the costs of the enabled regions. Resolved once per catalog and shared by all SKUs and terms referencing it.
+ *
+ * @param <O> The offer type.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class SkuComponent<O> {
+
+	private static final int[] NO_REGIONS = new int[0];
+	private static final double[] NO_COSTS = new double[0];
+
+	/**
+	 * Resolution status.
+	 */
+	@AllArgsConstructor
+	@Getter
+	public enum Status {
+		/**
+		 * Valid component.
+		 */
+		VALID(null),
+
+		/**
+		 * Not a <code>offer--tier</code> component.
+		 */
+		INVALID_PRICE("Invalid price {} found for SKU {} in term {}"),
+
+		/**
+		 * Unknown offer or offer without price.
+		 */
+		INVALID_OFFER("Invalid offer reference {} found for SKU {} in term {}"),
+
+		/**
+		 * Unknown tier in the offer.
+		 */
+		INVALID_TIERS("Invalid tiers reference {} found for SKU {} in term {}");
+
+		/**
+		 * The log message of this status, with the reference, the SKU and the term as arguments.
+		 */
+		private final String message;
+	}
+
+	/**
+	 * The resolution status.
+	 */
+	private final Status status;
+
+	/**
+	 * The invalid reference when not {@link Status#VALID}.
+	 */
+	private final String reference;
+
+	/**
+	 * The resolved offer.
+	 */
+	private final O offer;
+
+	/**
+	 * The cost counter of the tier or <code>-1</code> when unknown.
+	 */
+	private final int counter;
+
+	/**
+	 * The global cost, <code>NaN</code> for a regional component.
+	 */
+	private final double global;
+
+	/**
+	 * The enabled region identifiers having a cost.
+	 */
+	private final int[] regions;
+
+	/**
+	 * The costs of the enabled regions, in the same order than {@link #regions}.
+	 */
+	private final double[] costs;
+
+	/**
+	 * The fingerprint of the counter and the costs of this component.
+	 */
+	private final long fingerprint;
+
+	/**
+	 * Return an invalid component.
+	 *
+	 * @param status    The invalid status.
+	 * @param reference The invalid reference.
+	 * @param <O>       The offer type.
+	 * @return An invalid component.
+	 */
+	public static <O> SkuComponent<O> invalid(final Status status,
+			final String reference) {
+		return new SkuComponent<>(status, reference, null, -1, Double.NaN, NO_REGIONS, NO_COSTS, Fingerprint.SEED);
+	}
+
+	/**
+	 * Return a valid component not depending on the region.
+	 *
+	 * @param offer   The resolved offer.
+	 * @param counter The cost counter of the tier.
+	 * @param cost    The global cost.
+	 * @param <O>     The offer type.
+	 * @return A valid global component.
+	 */
+	public static <O> SkuComponent<O> global(final O offer, final int counter,
+			final double cost) {
+		return new SkuComponent<>(Status.VALID, null, offer, counter, cost, NO_REGIONS, NO_COSTS,
+				Fingerprint.mix(Fingerprint.mix(Fingerprint.SEED, counter), cost));
+	}
+
+	/**
+	 * Return a valid regional component.
+	 *
+	 * @param offer   The resolved offer.
+	 * @param counter The cost counter of the tier.
+	 * @param regions The enabled region identifiers.
+	 * @param costs   The costs of the enabled regions.
+	 * @param index   The region index, the fingerprint uses the region names since their identifiers depend on the
+	 *                catalog.
+	 * @param <O>     The offer type.
+	 * @return A valid regional component.
+	 */
+	public static <O> SkuComponent<O> regional(final O offer, final int counter,
+			final int[] regions, final double[] costs, final RegionIndex index) {
+		var fingerprint = Fingerprint.mix(Fingerprint.SEED, counter);
+		for (var i = 0; i < regions.length; i++) {
+			fingerprint = Fingerprint.mix(Fingerprint.mix(fingerprint, index.getName(regions[i])), costs[i]);
+		}
+		return new SkuComponent<>(Status.VALID, null, offer, counter, Double.NaN, regions, costs, fingerprint);
+	}
+
+	/**
+	 * Indicate this component does not depend on the region.
+	 *
+	 * @return <code>true</code> when this component does not depend on the region.
+	 */
+	public boolean isGlobal() {
+		return !Double.isNaN(global);
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Fingerprint of the prices of a SKU in a term: the hash of the resolved components and the amount of prices, one per
+ * enabled region. Both must match to keep the previous prices.
+ */
+@Getter
+@EqualsAndHashCode
+@AllArgsConstructor
+public class SkuFingerprint {
+
+	/**
+	 * The hash of the resolved components, see {@link Fingerprint}.
+	 */
+	private final long hash;
+
+	/**
+	 * The amount of installed prices.
+	 */
+	private final int count;
+}
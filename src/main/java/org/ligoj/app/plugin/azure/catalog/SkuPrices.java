@@ -0,0 +1,65 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Resolved monthly costs of a SKU in a term, not yet installed. Built without side effect on the persisted entities,
+ * so it can be computed by any thread.
+ *
+ * @param <T> The instance type.
+ */
+@Getter
+@AllArgsConstructor
+public class SkuPrices<T> {
+
+	/**
+	 * The resolved type.
+	 */
+	private final T type;
+
+	/**
+	 * The resolved edition, may be <code>null</code>.
+	 */
+	private final String edition;
+
+	/**
+	 * The resolved storage engine, may be <code>null</code>.
+	 */
+	private final String storageEngine;
+
+	/**
+	 * The enabled region identifiers of {@link RegionIndex}.
+	 */
+	private final int[] regions;
+
+	/**
+	 * The monthly costs, in the same order than the regions.
+	 */
+	private final double[] costs;
+
+	/**
+	 * The fingerprint of the SKU, recorded only when these prices are installed.
+	 */
+	private final SkuFingerprint fingerprint;
+
+	/**
+	 * When <code>true</code>, the SKU has the same fingerprint than the last applied catalog: the previous prices are
+	 * kept.
+	 */
+	private final boolean kept;
+
+	/**
+	 * Return the result of a SKU whose the previous prices are kept.
+	 *
+	 * @param <T>         The instance type.
+	 * @param fingerprint The fingerprint of the SKU.
+	 * @return The result of a SKU whose the previous prices are kept.
+	 */
+	public static <T> SkuPrices<T> kept(final SkuFingerprint fingerprint) {
+		return new SkuPrices<>(null, null, null, new int[0], new double[0], fingerprint, true);
+	}
+}
@@ -3,14 +3,20 @@
  */
 package org.ligoj.app.plugin.azure.catalog;
 
-import java.util.HashMap;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.regex.MatchResult;
 
 import org.ligoj.app.plugin.azure.catalog.database.DbConfiguration;
+import org.ligoj.app.plugin.azure.catalog.database.OfferClassifier;
 import org.ligoj.app.plugin.prov.catalog.AbstractUpdateContext;
 import org.ligoj.app.plugin.prov.model.ProvLocation;
 import org.ligoj.app.plugin.prov.model.ProvStoragePrice;
@@ -32,38 +38,164 @@ public class UpdateContext extends AbstractUpdateContext {
 	private Map<ProvStorageType, Map<ProvLocation, ProvStoragePrice>> previousStorages;
 
 	/**
-	 * /** The merged (updated properties) available regions.
+	 * Identifiers of the written previous prices released by the evictions, by price type. Key is the price code.
+	 */
+	private final Map<Class<?>, Map<String, Integer>> released = new ConcurrentHashMap<>();
+
+	/**
+	 * The merged (updated properties) available regions.
 	 */
 	@Getter
-	private final Map<String, ProvLocation> mergedRegions = new HashMap<>();
+	private final Map<String, ProvLocation> mergedRegions = new ConcurrentHashMap<>();
 
 	/**
-	 * The HDD transaction based cost by region. Key is the region name.
+	 * The HDD transaction based cost, indexed by region.
 	 */
 	@Getter
 	@Setter
-	private Map<String, ValueWrapper> transactionsHdd;
+	private RegionPrices transactionsHdd;
 
 	/**
-	 * The SSD transaction based cost by region. Key is the region name.
+	 * The SSD transaction based cost, indexed by region.
 	 */
 	@Getter
 	@Setter
-	private Map<String, ValueWrapper> transactionsSsd;
+	private RegionPrices transactionsSsd;
+
+	/**
+	 * The SKU fingerprints of the last applied catalog. Key is the price code without the region.
+	 */
+	@Getter
+	@Setter
+	private Map<String, SkuFingerprint> fingerprints = Map.of();
+
+	/**
+	 * The SKU fingerprints of the current catalog. Key is the price code without the region.
+	 */
+	@Getter
+	private final Map<String, SkuFingerprint> newFingerprints = new ConcurrentHashMap<>();
+
+	/**
+	 * The previous price codes indexed by their code without the region.
+	 */
+	@Getter
+	@Setter
+	private Map<String, List<String>> previousCodes = Map.of();
+
+	/**
+	 * The catalogs applied by this import or by the interrupted previous one. Key is the catalog name, value is the
+	 * settings and the hash of the applied content.
+	 */
+	@Getter
+	private final Map<String, String> checkpoints = new ConcurrentHashMap<>();
+
+	/**
+	 * When <code>true</code>, each catalog is installed in its own transaction.
+	 */
+	@Getter
+	@Setter
+	private boolean phaseTransaction;
+
+	/**
+	 * When <code>true</code>, a catalog installing storage prices has been applied by this import, so the storage
+	 * prices are purged even when the managed disk catalog is unchanged.
+	 */
+	@Getter
+	@Setter
+	private boolean storagesChanged;
+
+	/**
+	 * The local mirror of the raw catalogs.
+	 */
+	@Getter
+	@Setter
+	private CatalogMirror mirror = new CatalogMirror(CatalogMirror.Mode.OFF, null);
+
+	/**
+	 * The batched price writer.
+	 */
+	@Getter
+	@Setter
+	private PriceWriter writer;
+
+	/**
+	 * When <code>true</code>, the prices not installed by this import are purged with set based statements.
+	 */
+	@Getter
+	@Setter
+	private boolean bulkPurge;
+
+	/**
+	 * The metrics of this import.
+	 */
+	@Getter
+	private final ImportMetrics metrics = new ImportMetrics();
+
+	/**
+	 * The price codes already written in the kept price table.
+	 */
+	@Getter
+	private final Set<String> keptCodes = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The HTTP client shared by all catalog downloads of this import.
+	 */
+	@Getter
+	@Setter
+	private HttpClient httpClient;
+
+	/**
+	 * The timeout of each catalog request until the response headers are received. The body is not bounded.
+	 */
+	@Getter
+	@Setter
+	private Duration readTimeout = Duration.ofMinutes(1);
+
+	/**
+	 * The region identifiers shared by all catalogs.
+	 */
+	@Getter
+	private final RegionIndex regionIndex = new RegionIndex();
+
+	/**
+	 * The enabled regions evaluated at the beginning of the import, indexed by region identifier.
+	 */
+	@Getter
+	@Setter
+	private BitSet enabledRegions = new BitSet();
+
+	/**
+	 * The amount of region identifiers evaluated in {@link #enabledRegions}.
+	 */
+	@Getter
+	@Setter
+	private int evaluatedRegions;
+
+	/**
+	 * The enabled regions evaluated during the import, for the regions unknown at the beginning of the import.
+	 */
+	@Getter
+	private final Map<Integer, Boolean> lateRegions = new ConcurrentHashMap<>();
+
+	/**
+	 * The evaluated filters. Key is the filter name, value is the result of each evaluated code.
+	 */
+	@Getter
+	private final Map<String, Map<String, Boolean>> filters = new ConcurrentHashMap<>();
 
 	/**
 	 * The mapping from the Azure price entry to the database instance type name.
 	 */
 	@Getter
 	@Setter
-	private Map<Pattern, DbConfiguration> toDatabase;
+	private OfferClassifier<DbConfiguration> toDatabase;
 
 	/**
 	 * The mapping from the Azure price entry to the storage type name.
 	 */
 	@Getter
 	@Setter
-	private Map<Pattern, Function<Matcher, String>> toStorage;
+	private OfferClassifier<Function<MatchResult, String>> toStorage;
 
 	/**
 	 * Static storage type definition.
@@ -76,7 +208,7 @@ public class UpdateContext extends AbstractUpdateContext {
 	 * All sizes.
 	 */
 	@Getter
-	private final Map<String, String> sizesById = new HashMap<>();
+	private final Map<String, String> sizesById = new ConcurrentHashMap<>();
 
 	/**
 	 * Efficient baseline per instance type.
@@ -84,4 +216,27 @@ public class UpdateContext extends AbstractUpdateContext {
 	@Getter
 	private final Map<String, Double> baselines = new ConcurrentHashMap<>();
 
+	/**
+	 * The executor retrieving the next catalogs in background, or <code>null</code> when each catalog is retrieved when
+	 * installed.
+	 */
+	@Getter
+	@Setter
+	private Executor prefetcher;
+
+	/**
+	 * Catalogs being retrieved in background. Key is the catalog URL.
+	 */
+	@Getter
+	private final Map<String, CompletableFuture<? extends Catalog<?>>> catalogs = new ConcurrentHashMap<>();
+
+	/**
+	 * Return the identifiers of the written previous prices of a type, released by the evictions.
+	 *
+	 * @param type The price type.
+	 * @return The identifiers by price code.
+	 */
+	public Map<String, Integer> getReleased(final Class<?> type) {
+		return released.computeIfAbsent(type, t -> new ConcurrentHashMap<>());
+	}
 }
@@ -3,23 +3,28 @@
  */
 package org.ligoj.app.plugin.azure.catalog.database;
 
-import jakarta.annotation.PostConstruct;
-import lombok.extern.slf4j.Slf4j;
-import org.ligoj.app.plugin.azure.ProvAzurePluginResource;
-import org.ligoj.app.plugin.azure.catalog.AbstractVmAzureImport;
-import org.ligoj.app.plugin.azure.catalog.UpdateContext;
-import org.ligoj.app.plugin.prov.model.*;
-import org.ligoj.bootstrap.core.curl.CurlProcessor;
-import org.springframework.stereotype.Component;
-
 import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import java.util.function.ToIntFunction;
-import java.util.regex.Matcher;
+import java.util.regex.MatchResult;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import jakarta.annotation.PostConstruct;
+
+import org.apache.commons.lang3.StringUtils;
+import org.ligoj.app.plugin.azure.ProvAzurePluginResource;
+import org.ligoj.app.plugin.azure.catalog.AbstractVmAzureImport;
+import org.ligoj.app.plugin.azure.catalog.CostAccumulator;
+import org.ligoj.app.plugin.azure.catalog.UpdateContext;
+import org.ligoj.app.plugin.prov.model.*;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * The provisioning database price service for Azure. Manage install or update of prices.<br>
@@ -51,6 +56,17 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 
 	private static final String STEP_COMPUTE = "db-%s-%s";
 
+	/**
+	 * Mapping from the Azure catalog path to the engine name.
+	 */
+	private static final Map<String, String> ENGINES = Map.of("mysql", "MYSQL", "mariadb", "MARIADB", "postgresql",
+			"POSTGRESQL", "sql-database", "SQL SERVER");
+
+	/**
+	 * The catalog paths, in the installation order.
+	 */
+	private static final List<String> ENGINE_PATHS = List.of("mysql", "mariadb", "postgresql", "sql-database");
+
 	/**
 	 * Mapping from the database type/engine to RAM/vCore ratio.
 	 */
@@ -63,8 +79,7 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 	 */
 	@Override
 	public void install(final UpdateContext context) throws IOException {
-		context.setValidDatabaseType(Pattern.compile(configuration.get(CONF_DTYPE, ".*")));
-		context.setValidDatabaseEngine(Pattern.compile(configuration.get(CONF_ETYPE, ".*")));
+		initFilters(context);
 		context.setDatabaseTypes(dtRepository.findAllBy(BY_NODE, context.getNode()).stream()
 				.collect(Collectors.toConcurrentMap(AbstractCodedEntity::getCode, Function.identity())));
 		context.setPriceTerms(iptRepository.findAllBy(BY_NODE, context.getNode()).stream()
@@ -74,14 +89,15 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 		context.setStorageTypesStatic(csvForBean.toBean(ProvStorageType.class, "csv/azure-db-storage-type.csv").stream()
 				.collect(Collectors.toConcurrentMap(AbstractCodedEntity::getCode, Function.identity())));
 		context.setPreviousStorage(spRepository.findAllBy("type.node", context.getNode()).stream()
-				.collect(Collectors.toMap(ProvStoragePrice::getCode, Function.identity())));
+				.collect(Collectors.toConcurrentMap(ProvStoragePrice::getCode, Function.identity())));
 
 		// Not SQL engine
 		final var STD_PREFIX = "(generalpurpose|basic|memoryoptimized)-";
-		context.setToStorage(Map.ofEntries(toEntry(STD_PREFIX + "backup-(lrs|grs)", m -> "db-backup-" + m.group(2)),
-				toEntry(STD_PREFIX + "storage", m -> m.group(1).equals("basic") ? "db-standard" : "db-premium")));
-		context.setToDatabase(Map.ofEntries(toEntry(STD_PREFIX + "compute-g(\\d+)-(\\d+)",
-				m -> toSimpleName(m.group(1)), m -> Integer.parseInt(m.group(2)), m -> Integer.parseInt(m.group(3)))));
+		context.setToStorage(new OfferClassifier<>(
+				List.of(toEntry(STD_PREFIX + "backup-(lrs|grs)", m -> "db-backup-" + m.group(2)), toEntry(
+						STD_PREFIX + "storage", m -> m.group(1).equals("basic") ? "db-standard" : "db-premium"))));
+		context.setToDatabase(new OfferClassifier<>(List.of(toEntry(STD_PREFIX + "compute-g(\\d+)-(\\d+)",
+				m -> toSimpleName(m.group(1)), m -> Integer.parseInt(m.group(2)), m -> Integer.parseInt(m.group(3))))));
 		installPrices(context, "mysql", "MYSQL", null, null);
 		installPrices(context, "mariadb", "MARIADB", null, null);
 		installPrices(context, "postgresql", "POSTGRESQL", null, null);
@@ -90,25 +106,72 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 		final var SQL_PREFIX = "elastic-vcore-";
 		context.getSizesById().put("sql-gp", "General Purpose");
 		context.getSizesById().put("sql-bc", "Business Critical");
-		context.setToStorage(Map.ofEntries(toEntry(SQL_PREFIX + "backup", m -> "db-backup-lrs"),
+		context.setToStorage(new OfferClassifier<>(List.of(toEntry(SQL_PREFIX + "backup", m -> "db-backup-lrs"),
 				toEntry("managed-instance-pitr-backup-storage-ra-grs", m -> "db-backup-grs"),
 				toEntry(SQL_PREFIX + "general-purpose-storage", m -> "sql-gp"),
-				toEntry(SQL_PREFIX + "business-critical-storage", m -> "sql-bc-4,sql-bc-5,sql-bc-5-8,sql-bc-5-24")));
-		context.setToDatabase(
-				Map.ofEntries(toEntry(SQL_PREFIX + "(business-critical|general-purpose)-gen(\\d+)-(\\d+)(-.*)?",
+				toEntry(SQL_PREFIX + "business-critical-storage", m -> "sql-bc-4,sql-bc-5,sql-bc-5-8,sql-bc-5-24"))));
+		context.setToDatabase(new OfferClassifier<>(
+				List.of(toEntry(SQL_PREFIX + "(business-critical|general-purpose)-gen(\\d+)-(\\d+)(-.*)?",
 						m -> "sql-" + toSimpleName(m.group(1)), m -> Integer.parseInt(m.group(2)),
-						m -> Integer.parseInt(m.group(3)))));
+						m -> Integer.parseInt(m.group(3))))));
 		installPrices(context, "sql-database", "SQL SERVER", "ENTERPRISE", "SQL SERVER");
 	}
 
-	private Entry<Pattern, Function<Matcher, String>> toEntry(final String pattern,
-			final Function<Matcher, String> mapper) {
-		return Map.entry(Pattern.compile(pattern), mapper);
+	@Override
+	public void prefetch(final UpdateContext context, final Executor executor) {
+		initFilters(context);
+		ENGINES.forEach((path, engine) -> {
+			if (isEnabledEngine(context, engine)) {
+				prefetch(context, getDatabaseApi(path), DatabasePrices.class, executor);
+			}
+		});
 	}
 
-	private Entry<Pattern, DbConfiguration> toEntry(final String pattern, final Function<Matcher, String> tier,
-			final ToIntFunction<Matcher> gen, final ToIntFunction<Matcher> vcore) {
-		return Map.entry(Pattern.compile(pattern), new DbConfiguration(tier, gen, vcore));
+	/**
+	 * Start the retrieval of the first enabled engine catalog in background. The next ones are retrieved while the
+	 * previous one is installed, see {@link #install(UpdateContext)}.
+	 *
+	 * @param context  The current import context.
+	 * @param executor The executor running the downloads.
+	 */
+	public void prefetchFirst(final UpdateContext context, final Executor executor) {
+		initFilters(context);
+		prefetchNext(context, executor, ENGINE_PATHS.stream());
+	}
+
+	/**
+	 * Start the retrieval of the next enabled engine catalog, so at most one catalog is parsed ahead of the installed
+	 * one. Without background retrieval, each catalog is retrieved when installed. The catalogs already prefetched are
+	 * not retrieved again.
+	 */
+	private void prefetchNext(final UpdateContext context, final String path) {
+		final var executor = context.getPrefetcher();
+		if (executor != null) {
+			prefetchNext(context, executor, ENGINE_PATHS.stream().dropWhile(p -> !p.equals(path)).skip(1));
+		}
+	}
+
+	private void prefetchNext(final UpdateContext context, final Executor executor, final Stream<String> paths) {
+		paths.filter(p -> isEnabledEngine(context, ENGINES.get(p))).findFirst()
+				.ifPresent(p -> prefetch(context, getDatabaseApi(p), DatabasePrices.class, executor));
+	}
+
+	/**
+	 * Initialize the database type and engine filters.
+	 */
+	private void initFilters(final UpdateContext context) {
+		context.setValidDatabaseType(Pattern.compile(configuration.get(CONF_DTYPE, ".*")));
+		context.setValidDatabaseEngine(Pattern.compile(configuration.get(CONF_ETYPE, ".*")));
+	}
+
+	private Entry<String, Function<MatchResult, String>> toEntry(final String pattern,
+			final Function<MatchResult, String> mapper) {
+		return Map.entry(pattern, mapper);
+	}
+
+	private Entry<String, DbConfiguration> toEntry(final String pattern, final Function<MatchResult, String> tier,
+			final ToIntFunction<MatchResult> gen, final ToIntFunction<MatchResult> vcore) {
+		return Map.entry(pattern, new DbConfiguration(tier, gen, vcore));
 	}
 
 	private String toSimpleName(final String name) {
@@ -127,9 +190,10 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 	/**
 	 * Install the SKU and related prices associated to each term.
 	 */
-	protected void installSku(final UpdateContext context, final DatabasePrices prices, final String sku,
-			final Map<String, List<String>> terms, final String engine) {
-		terms.forEach((term, components) -> installTermPrices(context, prices, sku,
+	protected void installSku(final UpdateContext context, final CostAccumulator costs, final DatabasePrices prices,
+			final String sku, final Map<String, List<String>> terms, final String engine) {
+		context.getMetrics().increment("database-skus", 1);
+		terms.forEach((term, components) -> installTermPrices(context, costs, prices, sku,
 				installPriceTerm(context, prices, term, sku), term, engine, components));
 	}
 
@@ -139,73 +203,111 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 	 */
 	private void installPrices(final UpdateContext context, final String path, final String engine,
 			final String edition, final String storageEngine) throws IOException {
+		prefetchNext(context, path);
+		transactions.runPhase(context, () -> installEnginePrices(context, path, engine, edition, storageEngine));
+	}
+
+	private void installEnginePrices(final UpdateContext context, final String path, final String engine,
+			final String edition, final String storageEngine) throws IOException {
 		if (!isEnabledEngine(context, engine)) {
 			// This engine is disabled
-			nextStep(context, String.format(STEP_COMPUTE, engine, "disabled"));
+			startStep(context, String.format(STEP_COMPUTE, engine, "disabled"));
 			return;
 		}
 
-		nextStep(context, String.format(STEP_COMPUTE, engine, "initialize"));
+		startStep(context, String.format(STEP_COMPUTE, engine, "initialize"));
 		// Get previous prices
-		context.setPreviousDatabase(
-				dpRepository.findAllBy("type.node", context.getNode(), new String[] { "engine" }, engine).stream()
-						.collect(Collectors.toMap(ProvDatabasePrice::getCode, Function.identity())));
+		context.setPreviousDatabase(loadPrevious(context, ProvDatabasePrice.class, ProvDatabasePrice::new,
+				"p.type.node = ?1 AND p.engine = ?2", context.getNode(), engine));
+		loadFingerprints(context, path, context.getPreviousDatabase().keySet());
+		context.getWriter().setFresh(context.getPreviousDatabase().isEmpty());
 
 		// Fetch the remote prices stream and build the prices object
-		nextStep(context, String.format(STEP_COMPUTE, engine, "retrieve-catalog"));
-		try (var curl = new CurlProcessor()) {
-			final var rawJson = Objects.toString(curl.get(getDatabaseApi(path)), "{}");
-			final var prices = objectMapper.readValue(rawJson, DatabasePrices.class);
-
-			nextStep(context, String.format(STEP_COMPUTE, engine, "update"));
-			commonPreparation(context, prices);
-			prices.getComputeTypes().forEach(n -> context.getSizesById().put(n.getId(), n.getName()));
-
-			// Parse offers
-			prices.getOffers().forEach((k, offer) -> {
-				if (offer.getPrices().containsKey("pergb")) {
-					context.getToStorage().entrySet().stream().anyMatch(s -> {
-						final var sMatch = s.getKey().matcher(k);
-						if (sMatch.matches()) {
-							// Storage price
-							installStoragePrices(context, s.getValue().apply(sMatch), offer);
-							return true;
-						}
-						return false;
-					});
-				} else {
-					context.getToDatabase().entrySet().stream().anyMatch(s -> {
-						final var sMatch = s.getKey().matcher(k);
-						if (sMatch.matches()) {
-							// Compute price
-							parseOffer(context, engine, edition, storageEngine, sMatch, s.getValue(), offer);
-							return true;
-						}
-						return false;
-					});
-				}
-			});
-
-			// Install SKUs and install prices
-			nextStep(context, String.format(STEP_COMPUTE, engine, "install"));
-			prices.getSkus().entrySet().stream()
-					.filter(e -> !e.getKey().contains("-software-") && !e.getKey().startsWith("hyperscale")
-							&& !e.getKey().contains("-dtu-") && !e.getKey().startsWith("managed"))
-					.forEach(e -> installSku(context, prices, e.getKey(), e.getValue(), engine));
+		startStep(context, String.format(STEP_COMPUTE, engine, "retrieve-catalog"));
+		final var catalog = getCatalog(context, getDatabaseApi(path), DatabasePrices.class);
+		if (catalog.isUnchanged()) {
+			// Same catalog as the last applied one, the previous prices are kept
+			startStep(context, String.format(STEP_COMPUTE, engine, "update"));
+			startStep(context, String.format(STEP_COMPUTE, engine, "install"));
+			keepPrices(context, "database", context.getPreviousDatabase().values());
+			keepStoragePrices(context, engine);
+			if (isResumed(context, catalog)) {
+				// The storage prices of this engine may have been installed without being purged
+				context.setStoragesChanged(true);
+			}
+			return;
 		}
+		final var prices = catalog.getPrices();
+		context.setStoragesChanged(true);
+
+		startStep(context, String.format(STEP_COMPUTE, engine, "update"));
+		commonPreparation(context, prices);
+		prices.getComputeTypes().forEach(n -> context.getSizesById().put(n.getId(), n.getName()));
+
+		// Parse offers
+		prices.getOffers().forEach((k, offer) -> {
+			if (offer.getPrices().containsKey("pergb")) {
+				final var match = context.getToStorage().classify(k);
+				if (match != null) {
+					// Storage price
+					installStoragePrices(context, match.getValue().apply(match), offer);
+				}
+			} else {
+				final var match = context.getToDatabase().classify(k);
+				if (match != null) {
+					// Compute price
+					parseOffer(context, engine, edition, storageEngine, match, match.getValue(), offer);
+				}
+			}
+		});
+
+		// Install SKUs and install prices
+		startStep(context, String.format(STEP_COMPUTE, engine, "install"));
+		final var costs = new CostAccumulator();
+		prices.getSkus().entrySet().stream()
+				.filter(e -> !e.getKey().contains("-software-") && !e.getKey().startsWith("hyperscale")
+						&& !e.getKey().contains("-dtu-") && !e.getKey().startsWith("managed"))
+				.forEach(e -> installSku(context, costs, prices, e.getKey(), e.getValue(), engine));
+
 		// Purge
-		purgePrices(context, context.getPreviousDatabase(), dpRepository, qdRepository);
+		context.getWriter().report(engine);
+		purge(context, "database", () -> dpRepository.countBy("type.node", context.getNode()), () -> {
+			if (context.isBulkPurge()) {
+				keptPrices.purgeDatabasePrices(context, engine);
+			} else {
+				purgePrices(context, attachRetired(context, context.getPreviousDatabase()), dpRepository, qdRepository);
+			}
+		});
+		completeCatalog(context, catalog);
+		saveFingerprints(context, path);
 		log.info("Azure Database import finished : {} prices", context.getPrices().size());
 	}
 
-	private void installTermPrices(final UpdateContext context, final DatabasePrices prices, final String sku,
-			final ProvInstancePriceTerm term, final String termName, final String engine,
-			final List<String> components) {
+	/**
+	 * Keep the storage prices of a skipped engine, so they are not purged with the managed disk prices. The storage
+	 * types shared by several engines are also kept.
+	 */
+	private void keepStoragePrices(final UpdateContext context, final String engine) {
+		context.getPreviousStorage().values().stream()
+				.filter(p -> context.getStorageTypesStatic().containsKey(p.getType().getCode()))
+				.filter(p -> StringUtils.isEmpty(p.getType().getEngine()) || engine.equals(p.getType().getEngine()))
+				.forEach(p -> context.getPrices().add(p.getCode()));
+	}
+
+	@Override
+	protected String getCatalogSettings() {
+		return super.getCatalogSettings() + ",type=" + configuration.get(CONF_DTYPE, ".*") + ",engine="
+				+ configuration.get(CONF_ETYPE, ".*");
+	}
+
+	private void installTermPrices(final UpdateContext context, final CostAccumulator costs,
+			final DatabasePrices prices, final String sku, final ProvInstancePriceTerm term, final String termName,
+			final String engine, final List<String> components) {
 		final var localCode = term.getCode() + "/" + sku + "/" + engine;
 		final var byol = termName.contains("ahb");
-		installSkuComponents(context, prices, components, sku, termName, this::isEnabledType,
-				(type, edition, storageEngine, cost, r) -> installDbPrice(context, term, localCode, type, cost, engine,
-						edition, storageEngine, byol, r));
+		installSkuComponents(context, costs, prices, components, sku, termName, (byol ? "byol/" : "") + localCode,
+				this::isEnabledType, (type, edition, storageEngine, cost, r) -> installDbPrice(context, term,
+						localCode, type, cost, engine, edition, storageEngine, byol, r));
 	}
 
 	/**
@@ -214,13 +316,14 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 	private void installDbPrice(final UpdateContext context, final ProvInstancePriceTerm term, final String localCode,
 			final ProvDatabaseType type, final double monthlyCost, final String engine, final String edition,
 			final String storageEngine, final boolean byol, final String region) {
-		final var previous = context.getPreviousDatabase();
-		final var price = previous.computeIfAbsent(region + (byol ? "/byol/" : "/") + localCode, code -> {
-			// New instance price
-			final var newPrice = new ProvDatabasePrice();
-			newPrice.setCode(code);
-			return newPrice;
-		});
+		final var code = region + (byol ? "/byol/" : "/") + localCode;
+		final var price = getPrevious(context, context.getPreviousDatabase(), code, code, ProvDatabasePrice.class,
+				() -> {
+					// New instance price
+					final var newPrice = new ProvDatabasePrice();
+					newPrice.setCode(code);
+					return newPrice;
+				});
 
 		copyAsNeeded(context, price, p -> {
 			p.setLocation(installRegion(context, region, null));
@@ -238,7 +341,7 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 	}
 
 	private void parseOffer(final UpdateContext context, final String engine, final String edition,
-			final String storageEngine, final Matcher matcher, final DbConfiguration conf,
+			final String storageEngine, final MatchResult matcher, final DbConfiguration conf,
 			final AzureDatabaseOffer offer) {
 		final var tier = conf.getToTier().apply(matcher); // basic, sql-gp, sql-bc, mo, gp
 		final var gen = conf.getToGen().applyAsInt(matcher); // (Gen)4, (Gen)5,...
@@ -255,10 +358,13 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 	 */
 	private void installStoragePrices(final UpdateContext context, final String typeCodes,
 			final AzureDatabaseOffer offer) {
+		final var regions = context.getRegionIndex();
 		Arrays.stream(typeCodes.split(",")).map(code -> installStorageType(context, code)).filter(Objects::nonNull)
-				.forEach(type -> offer.getPrices().get("pergb").entrySet().stream()
-						.filter(pl -> isEnabledRegion(context, pl.getKey()))
-						.forEach(pl -> installStoragePrice(context, type, pl.getKey(), pl.getValue().getValue())));
+				.forEach(type -> offer.getPrices().get("pergb").forEach((r, value) -> {
+					if (isEnabledRegion(context, r)) {
+						installStoragePrice(context, type, regions.getName(r), value);
+					}
+				}));
 	}
 
 	/**
@@ -297,7 +403,8 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 	 */
 	private void installStoragePrice(final UpdateContext context, final ProvStorageType type, final String region,
 			final double cost) {
-		final var price = context.getPreviousStorage().computeIfAbsent(region + "/az/" + type.getCode(), code -> {
+		final var code = region + "/az/" + type.getCode();
+		final var price = getPrevious(context, context.getPreviousStorage(), code, code, ProvStoragePrice.class, () -> {
 			final var newPrice = new ProvStoragePrice();
 			newPrice.setCode(code);
 			return newPrice;
@@ -306,7 +413,8 @@ public class AzurePriceImportDatabase extends AbstractVmAzureImport<ProvDatabase
 			p.setType(type);
 			p.setLocation(context.getRegions().get(region));
 		});
-		saveAsNeeded(context, price, cost, spRepository);
+		saveAsNeeded(context, price, price.getCostGb(), cost, (cR, c) -> price.setCostGb(cR),
+				p -> context.getWriter().save(p, spRepository));
 	}
 
 	/**
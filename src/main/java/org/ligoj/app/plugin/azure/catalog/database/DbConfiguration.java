@@ -5,7 +5,7 @@ package org.ligoj.app.plugin.azure.catalog.database;
 
 import java.util.function.Function;
 import java.util.function.ToIntFunction;
-import java.util.regex.Matcher;
+import java.util.regex.MatchResult;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -16,8 +16,8 @@ import lombok.Getter;
 @AllArgsConstructor
 @Getter
 public class DbConfiguration {
-	private Function<Matcher, String> toTier;
-	private ToIntFunction<Matcher> toGen;
-	private ToIntFunction<Matcher> toVcore;
+	private Function<MatchResult, String> toTier;
+	private ToIntFunction<MatchResult> toGen;
+	private ToIntFunction<MatchResult> toVcore;
 
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.catalog.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Offer key classifier. The rule patterns are compiled into a single alternation, so an offer key is classified in a
+ * single pass. The first matching rule, in the declaration order, wins. The groups of the returned match are numbered
+ * relatively to the matching rule pattern. Not thread safe, the matcher is reused.
+ *
+ * @param <V> The rule value type.
+ */
+public class OfferClassifier<V> {
+
+	private final Matcher matcher;
+
+	/**
+	 * The group of each rule in the alternation.
+	 */
+	private final int[] groups;
+
+	/**
+	 * The group count of each rule pattern.
+	 */
+	private final int[] counts;
+
+	private final List<V> values = new ArrayList<>();
+
+	/**
+	 * Build the classifier of the given rules.
+	 *
+	 * @param rules The ordered rules: the pattern and the associated value.
+	 */
+	public OfferClassifier(final List<Entry<String, V>> rules) {
+		this.groups = new int[rules.size()];
+		this.counts = new int[rules.size()];
+		final var alternation = new StringBuilder();
+		var group = 1;
+		for (var i = 0; i < rules.size(); i++) {
+			final var rule = rules.get(i);
+			if (i > 0) {
+				alternation.append('|');
+			}
+			alternation.append('(').append(rule.getKey()).append(')');
+			groups[i] = group;
+			counts[i] = Pattern.compile(rule.getKey()).matcher("").groupCount();
+			group += counts[i] + 1;
+			values.add(rule.getValue());
+		}
+		this.matcher = Pattern.compile(alternation.toString()).matcher("");
+	}
+
+	/**
+	 * Classify the given offer key.
+	 *
+	 * @param key The offer key.
+	 * @return The match of the first matching rule, or <code>null</code>. Valid until the next classification.
+	 */
+	public Match<V> classify(final CharSequence key) {
+		if (!matcher.reset(key).matches()) {
+			return null;
+		}
+		for (var i = 0; i < groups.length; i++) {
+			if (matcher.start(groups[i]) >= 0) {
+				return new Match<>(values.get(i), matcher, groups[i], counts[i]);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The match of a rule, the groups are numbered relatively to the rule pattern.
+	 *
+	 * @param <V> The rule value type.
+	 */
+	@AllArgsConstructor(access = AccessLevel.PRIVATE)
+	public static class Match<V> implements MatchResult {
+
+		/**
+		 * The value of the matching rule.
+		 */
+		@Getter
+		private final V value;
+
+		private final Matcher matcher;
+
+		/**
+		 * The group of the rule in the alternation.
+		 */
+		private final int offset;
+
+		/**
+		 * The group count of the rule pattern.
+		 */
+		private final int count;
+
+		@Override
+		public int start() {
+			return matcher.start(offset);
+		}
+
+		@Override
+		public int start(final int group) {
+			return matcher.start(offset + checkGroup(group));
+		}
+
+		@Override
+		public int end() {
+			return matcher.end(offset);
+		}
+
+		@Override
+		public int end(final int group) {
+			return matcher.end(offset + checkGroup(group));
+		}
+
+		@Override
+		public String group() {
+			return matcher.group(offset);
+		}
+
+		@Override
+		public String group(final int group) {
+			return matcher.group(offset + checkGroup(group));
+		}
+
+		@Override
+		public int groupCount() {
+			return count;
+		}
+
+		private int checkGroup(final int group) {
+			if (group < 0 || group > count) {
+				throw new IndexOutOfBoundsException("No group " + group);
+			}
+			return group;
+		}
+	}
+}
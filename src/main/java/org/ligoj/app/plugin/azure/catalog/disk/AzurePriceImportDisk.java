@@ -3,23 +3,24 @@
  */
 package org.ligoj.app.plugin.azure.catalog.disk;
 
-import lombok.extern.slf4j.Slf4j;
-import org.ligoj.app.plugin.azure.catalog.AbstractAzureImport;
-import org.ligoj.app.plugin.azure.catalog.UpdateContext;
-import org.ligoj.app.plugin.prov.model.*;
-import org.ligoj.bootstrap.core.INamableBean;
-import org.ligoj.bootstrap.core.curl.CurlProcessor;
-import org.springframework.stereotype.Component;
-
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import org.ligoj.app.plugin.azure.catalog.AbstractAzureImport;
+import org.ligoj.app.plugin.azure.catalog.RegionPrices;
+import org.ligoj.app.plugin.azure.catalog.UpdateContext;
+import org.ligoj.app.plugin.prov.model.*;
+import org.ligoj.bootstrap.core.INamableBean;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
 /**
  * The provisioning storage price service for Azure. Manage install or update of prices.<br>
  * TODO "one-year" and "three-year" terms are not managed
@@ -39,49 +40,80 @@ public class AzurePriceImportDisk extends AbstractAzureImport {
 	public void install(final UpdateContext context) throws IOException {
 		final var node = context.getNode();
 		log.info("Azure managed-disk prices...");
-		nextStep(context, "disk-initialize");
+		startStep(context, "disk-initialize");
 
 		// The previously installed location cache. Key is the location Azure name
 		context.setRegions(locationRepository.findAllBy(BY_NODE, node).stream()
-				.collect(Collectors.toMap(INamableBean::getName, Function.identity())));
+				.collect(Collectors.toConcurrentMap(INamableBean::getName, Function.identity())));
 		initRate("storage");
 
 		// The previously installed storage types cache. Key is the storage type name
 		context.setStorageTypes(stRepository.findAllBy(BY_NODE, node).stream()
-				.collect(Collectors.toMap(AbstractCodedEntity::getCode, Function.identity())));
-		context.setPreviousStorages(new HashMap<>());
+				.collect(Collectors.toConcurrentMap(AbstractCodedEntity::getCode, Function.identity())));
+		context.setPreviousStorages(new ConcurrentHashMap<>());
 		spRepository.findAllBy("type.node.id", node.getId()).forEach(p -> context.getPreviousStorages()
-				.computeIfAbsent(p.getType(), t -> new HashMap<>()).put(p.getLocation(), p));
+				.computeIfAbsent(p.getType(), t -> new ConcurrentHashMap<>()).put(p.getLocation(), p));
+		context.getWriter().setFresh(context.getPreviousStorages().isEmpty());
 
 		// Fetch the remote prices stream
-		nextStep(context, "disk-retrieve-catalog");
-		try (var curl = new CurlProcessor()) {
-			final var rawJson = Objects.toString(curl.get(getManagedDiskApi()), "{}");
-			final var prices = objectMapper.readValue(rawJson, ManagedDisks.class);
-
-			// Install related regions
-			nextStep(context, "disk-update-catalog");
-			commonPreparation(context, prices);
-			prices.getSizes().forEach(n -> context.getSizesById().put(n.getId(), n.getName()));
-
-			final var offers = prices.getOffers();
-			// Get transaction costs
-			context.setTransactionsHdd(offers.getOrDefault("transactions-hdd", new ManagedDisk()).getPrices());
-			context.setTransactionsSsd(offers.getOrDefault("transactions-ssd", new ManagedDisk()).getPrices());
-
-			// Update or install storage price
-			offers.entrySet().stream()
-					.filter(p -> !p.getKey().startsWith("transactions-") && !p.getKey().endsWith("-year")
-							&& !p.getKey().endsWith("disk-mount") && !p.getKey().startsWith("ultrassd"))
-					.forEach(o -> installStoragePrice(context, prices, o));
-
-			// Purge
-			final var newPrices = context.getPreviousStorages().values().stream().flatMap(sp -> sp.values().stream())
-					.collect(Collectors.toMap(AbstractPrice::getCode, p -> p));
-			purgePrices(context, newPrices, spRepository, qsRepository);
+		startStep(context, "disk-retrieve-catalog");
+		final var catalog = getCatalog(context, getManagedDiskApi(), ManagedDisks.class);
+		startStep(context, "disk-update-catalog");
+		if (catalog.isUnchanged()) {
+			// Same catalog as the last applied one, the previous managed disk prices are kept
+			final var databaseTypes = Objects.requireNonNullElse(context.getStorageTypesStatic(), Map.of());
+			keepPrices(context, "storage", context.getPreviousStorages().values().stream()
+					.flatMap(p -> p.values().stream()).filter(p -> !databaseTypes.containsKey(p.getType().getCode()))
+					.toList());
+			if (!context.isStoragesChanged()) {
+				// The database storage prices have not changed either
+				return;
+			}
+		} else {
+			installStoragePrices(context, catalog.getPrices());
+		}
+
+		// Purge the managed disk and the database storage prices
+		context.getWriter().report("disk");
+		purge(context, "storage", () -> spRepository.countBy("type.node", node), () -> {
+			if (context.isBulkPurge()) {
+				keptPrices.purgeStoragePrices(context);
+			} else {
+				final var newPrices = context.getPreviousStorages().values().stream()
+						.flatMap(sp -> sp.values().stream()).collect(Collectors.toMap(AbstractPrice::getCode, p -> p));
+				purgePrices(context, attachRetired(context, newPrices), spRepository, qsRepository);
+			}
+		});
+		if (!catalog.isUnchanged()) {
+			completeCatalog(context, catalog);
 		}
 	}
 
+	/**
+	 * Install the managed disk prices of a changed catalog.
+	 */
+	private void installStoragePrices(final UpdateContext context, final ManagedDisks prices) {
+		// Install related regions
+		commonPreparation(context, prices);
+		prices.getSizes().forEach(n -> context.getSizesById().put(n.getId(), n.getName()));
+
+		final var offers = prices.getOffers();
+		// Get transaction costs
+		context.setTransactionsHdd(offers.getOrDefault("transactions-hdd", new ManagedDisk()).getPrices());
+		context.setTransactionsSsd(offers.getOrDefault("transactions-ssd", new ManagedDisk()).getPrices());
+
+		// Update or install storage price
+		offers.entrySet().stream()
+				.filter(p -> !p.getKey().startsWith("transactions-") && !p.getKey().endsWith("-year")
+						&& !p.getKey().endsWith("disk-mount") && !p.getKey().startsWith("ultrassd"))
+				.forEach(o -> installStoragePrice(context, prices, o));
+	}
+
+	@Override
+	public void prefetch(final UpdateContext context, final Executor executor) {
+		prefetch(context, getManagedDiskApi(), ManagedDisks.class, executor);
+	}
+
 	/**
 	 * Install a {@link ProvStoragePrice} from an {@link ManagedDisk} offer.
 	 *
@@ -92,10 +124,14 @@ public class AzurePriceImportDisk extends AbstractAzureImport {
 			final Entry<String, ManagedDisk> offer) {
 		final var disk = offer.getValue();
 		final var type = installStorageType(context, prices, offer.getKey(), disk);
-		final var previousT = context.getPreviousStorages().computeIfAbsent(type, t -> new HashMap<>());
-		disk.getPrices().entrySet().stream().filter(p -> isEnabledRegion(context, p.getKey()))
-				.forEach(p -> installStoragePrice(context, previousT, context.getRegions().get(p.getKey()), type,
-						p.getValue().getValue(), offer.getKey()));
+		final var previousT = context.getPreviousStorages().computeIfAbsent(type, t -> new ConcurrentHashMap<>());
+		final var regions = context.getRegionIndex();
+		disk.getPrices().forEach((r, value) -> {
+			if (isEnabledRegion(context, r)) {
+				installStoragePrice(context, previousT, r, context.getRegions().get(regions.getName(r)), type, value,
+						offer.getKey());
+			}
+		});
 	}
 
 	/**
@@ -105,13 +141,14 @@ public class AzurePriceImportDisk extends AbstractAzureImport {
 	 * @see <a href="https://azure.microsoft.com/en-us/pricing/details/managed-disks/"></a>
 	 */
 	private ProvStoragePrice installStoragePrice(final UpdateContext context,
-			final Map<ProvLocation, ProvStoragePrice> regionPrices, final ProvLocation region,
+			final Map<ProvLocation, ProvStoragePrice> regionPrices, final int regionId, final ProvLocation region,
 			final ProvStorageType type, final double value, final String typeCode) {
-		final var price = regionPrices.computeIfAbsent(region, r -> {
+		final var code = region.getName() + "/az/" + type.getCode();
+		final var price = getPrevious(context, regionPrices, region, code, ProvStoragePrice.class, () -> {
 			final var newPrice = new ProvStoragePrice();
 			newPrice.setType(type);
 			newPrice.setLocation(region);
-			newPrice.setCode(region.getName() + "/az/" + type.getCode());
+			newPrice.setCode(code);
 			return newPrice;
 		});
 
@@ -124,18 +161,23 @@ public class AzurePriceImportDisk extends AbstractAzureImport {
 
 		if (typeCode.startsWith("standardhdd")) {
 			// Additional transaction based cost : $/10,000 transaction -> $/1,000,000 transaction
-			price.setCostTransaction(Optional.ofNullable(context.getTransactionsHdd().get(region.getName()))
-					.map(v -> round3Decimals(v.getValue() * 100)).orElse(0d));
+			price.setCostTransaction(toTransactionCost(context.getTransactionsHdd(), regionId));
 		} else if (typeCode.startsWith("standardssd")) {
 			// Additional transaction based cost : $/10,000 transaction -> $/1,000,000 transaction
-			price.setCostTransaction(Optional.ofNullable(context.getTransactionsSsd().get(region.getName()))
-					.map(v -> round3Decimals(v.getValue() * 100)).orElse(0d));
+			price.setCostTransaction(toTransactionCost(context.getTransactionsSsd(), regionId));
 		}
 		context.getPrices().add(price.getCode());
-		spRepository.save(price);
+		context.getWriter().save(price, spRepository);
 		return price;
 	}
 
+	/**
+	 * Return the cost of 1,000,000 transactions from the cost of 10,000 transactions.
+	 */
+	private double toTransactionCost(final RegionPrices transactions, final int region) {
+		return transactions.has(region) ? round3Decimals(transactions.get(region) * 100) : 0d;
+	}
+
 	/**
 	 * Install or update a storage type.
 	 */
@@ -3,10 +3,7 @@
  */
 package org.ligoj.app.plugin.azure.catalog.disk;
 
-import java.util.Collections;
-import java.util.Map;
-
-import org.ligoj.app.plugin.azure.catalog.ValueWrapper;
+import org.ligoj.app.plugin.azure.catalog.RegionPrices;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -39,8 +36,8 @@ public class ManagedDisk {
 	private int iops;
 
 	/**
-	 * Price per regions. Key is the Azure region identifier. Value is the actual price.
+	 * Price per regions, indexed by region.
 	 */
-	private Map<String, ValueWrapper> prices = Collections.emptyMap();
+	private RegionPrices prices = new RegionPrices();
 
 }
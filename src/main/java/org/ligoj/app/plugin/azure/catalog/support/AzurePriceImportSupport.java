@@ -23,7 +23,7 @@ public class AzurePriceImportSupport extends AbstractAzureImport {
 
 	@Override
 	public void install(final UpdateContext context) throws IOException {
-		nextStep(context, "support");
+		startStep(context, "support");
 
 		// Install previous types
 		installSupportTypes(context);
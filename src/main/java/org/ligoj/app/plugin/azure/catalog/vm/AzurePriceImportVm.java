@@ -4,13 +4,15 @@
 package org.ligoj.app.plugin.azure.catalog.vm;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -18,8 +20,13 @@ import java.util.stream.Collectors;
 import jakarta.annotation.PostConstruct;
 
 import org.apache.commons.lang3.*;
+import org.apache.commons.lang3.function.TriConsumer;
 import org.ligoj.app.plugin.azure.ProvAzurePluginResource;
 import org.ligoj.app.plugin.azure.catalog.AbstractVmAzureImport;
+import org.ligoj.app.plugin.azure.catalog.Catalog;
+import org.ligoj.app.plugin.azure.catalog.CostAccumulator;
+import org.ligoj.app.plugin.azure.catalog.OrderedPipeline;
+import org.ligoj.app.plugin.azure.catalog.PrefixTrie;
 import org.ligoj.app.plugin.azure.catalog.UpdateContext;
 import org.ligoj.app.plugin.prov.model.ProvInstancePrice;
 import org.ligoj.app.plugin.prov.model.ProvInstancePriceTerm;
@@ -27,7 +34,6 @@ import org.ligoj.app.plugin.prov.model.ProvInstanceType;
 import org.ligoj.app.plugin.prov.model.ProvTenancy;
 import org.ligoj.app.plugin.prov.model.Rate;
 import org.ligoj.app.plugin.prov.model.VmOs;
-import org.ligoj.bootstrap.core.curl.CurlProcessor;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -54,10 +60,47 @@ public class AzurePriceImportVm extends AbstractVmAzureImport<ProvInstanceType>
 	 */
 	public static final String CONF_OS = ProvAzurePluginResource.KEY + ":os";
 
+	/**
+	 * Configuration key used to set the amount of threads computing the SKU prices. When value is <code>1</code>, the
+	 * SKUs are installed sequentially.
+	 */
+	public static final String CONF_PARALLELISM = ProvAzurePluginResource.KEY + ":parallelism";
+
+	/**
+	 * Amount of SKUs computed by a single task in parallel mode.
+	 */
+	private static final int CHUNK_SIZE = 64;
+
 	private static final TypeReference<Map<String, Double>> MAP_BASELINE = new TypeReference<>() {
 		// Nothing to extend
 	};
 
+	/**
+	 * Catalog properties required before installing the first SKU: regions, terms, offers and sizes.
+	 */
+	private static final List<String> CATALOG_HEADER = List.of("regions", "billingOptions", "offers",
+			"softwareLicenses", "sizesPayGo");
+
+	/**
+	 * The catalog name.
+	 */
+	private static final String CATALOG = "virtual-machines";
+
+	/**
+	 * The OS indexed by their SKU part names, including the <code>redhat</code> and <code>sles</code> aliases.
+	 */
+	private static final PrefixTrie<VmOs> OS_INDEX = new PrefixTrie<>(true);
+
+	static {
+		for (final var os : VmOs.values()) {
+			final var name = os.name().toLowerCase(Locale.ENGLISH);
+			OS_INDEX.put(name, os);
+			OS_INDEX.put(name.replace("rhel", "redhat"), os);
+			OS_INDEX.put(name.replace("suse", "sles"), os);
+			OS_INDEX.put(name.replace("rhel", "redhat").replace("suse", "sles"), os);
+		}
+	}
+
 	private final Set<String> dedicatedTypes = new HashSet<>();
 
 	/**
@@ -67,44 +110,109 @@ public class AzurePriceImportVm extends AbstractVmAzureImport<ProvInstanceType>
 	 */
 	@Override
 	public void install(final UpdateContext context) throws IOException {
-		nextStep(context, String.format(STEP_COMPUTE, "initialize"));
+		startStep(context, String.format(STEP_COMPUTE, "initialize"));
 		final var node = context.getNode();
 		context.setValidOs(Pattern.compile(configuration.get(CONF_OS, ".*"), Pattern.CASE_INSENSITIVE));
 		context.setValidInstanceType(Pattern.compile(configuration.get(CONF_ITYPE, ".*"), Pattern.CASE_INSENSITIVE));
 		context.setInstanceTypes(itRepository.findAllBy(BY_NODE, node).stream()
-				.collect(Collectors.toMap(ProvInstanceType::getCode, Function.identity())));
+				.collect(Collectors.toConcurrentMap(ProvInstanceType::getCode, Function.identity())));
 		context.setPriceTerms(iptRepository.findAllBy(BY_NODE, node).stream()
-				.collect(Collectors.toMap(ProvInstancePriceTerm::getCode, Function.identity())));
-		context.setPrevious(ipRepository.findAllBy("term.node", node).stream()
-				.collect(Collectors.toMap(ProvInstancePrice::getCode, Function.identity())));
+				.collect(Collectors.toConcurrentMap(ProvInstancePriceTerm::getCode, Function.identity())));
+		context.setPrevious(
+				loadPrevious(context, ProvInstancePrice.class, ProvInstancePrice::new, "p.term.node = ?1", node));
 		context.getBaselines().putAll(toMap("azure-baselines.json", MAP_BASELINE));
-
-		installComputePrices(context);
+		loadFingerprints(context, CATALOG, context.getPrevious().keySet());
+		// First install, nothing to compare
+		context.getWriter().setFresh(context.getPrevious().isEmpty());
+
+		final var catalog = installComputePrices(context);
+		if (catalog.isUnchanged()) {
+			// Same catalog as the last applied one, the previous prices are kept
+			startStep(context, String.format(STEP_COMPUTE, "parse-catalog"));
+			startStep(context, String.format(STEP_COMPUTE, "install"));
+			keepPrices(context, "instance", context.getPrevious().values());
+			return;
+		}
 
 		// Purge
-		purgePrices(context, context.getPrevious(), ipRepository, qiRepository);
+		context.getWriter().report("instance");
+		purge(context, "instance", () -> ipRepository.countBy("term.node", node), () -> {
+			if (context.isBulkPurge()) {
+				keptPrices.purgeInstancePrices(context);
+			} else {
+				purgePrices(context, attachRetired(context, context.getPrevious()), ipRepository, qiRepository);
+			}
+		});
+		completeCatalog(context, catalog);
+		saveFingerprints(context, CATALOG);
 		log.info("Azure Database import finished : {} prices", context.getPrices().size());
 	}
 
+	@Override
+	protected String getCatalogSettings() {
+		return super.getCatalogSettings() + ",os=" + configuration.get(CONF_OS, ".*") + ",type="
+				+ configuration.get(CONF_ITYPE, ".*");
+	}
+
 	private String getVmApi() {
-		return configuration.get(CONF_API_PRICES, DEFAULT_API_PRICES_V3) + "/virtual-machines/calculator/";
+		return configuration.get(CONF_API_PRICES, DEFAULT_API_PRICES_V3) + "/" + CATALOG + "/calculator/";
 	}
 
 	/**
 	 * Install Pay-as-you-Go, one year, three years compute prices from the JSON file provided by Azure for the given
-	 * category.
+	 * category. The SKUs are installed while the catalog is streamed.
 	 *
 	 * @param context The update context.
+	 * @return The retrieved catalog.
 	 */
-	private void installComputePrices(final UpdateContext context) throws IOException {
+	private Catalog<ComputePrices> installComputePrices(final UpdateContext context) throws IOException {
+		final var parallelism = configuration.get(CONF_PARALLELISM, 1);
+		if (parallelism <= 1) {
+			final var costs = new CostAccumulator();
+			return installComputePrices(context,
+					(prices, sku, skuTerms) -> installSku(context, costs, prices, sku, skuTerms, Runnable::run));
+		}
+
+		// The SKU prices are computed by the workers, and installed in the catalog order by the current thread
+		try (var pipeline = new OrderedPipeline(parallelism)) {
+			final var chunk = new ArrayList<Entry<String, Map<String, List<String>>>>();
+			final var catalog = installComputePrices(context, (prices, sku, skuTerms) -> {
+				chunk.add(Map.entry(sku, skuTerms));
+				if (chunk.size() >= CHUNK_SIZE) {
+					submit(context, pipeline, prices, chunk);
+				}
+			});
+			if (!chunk.isEmpty()) {
+				submit(context, pipeline, catalog.getPrices(), chunk);
+			}
+			pipeline.drain();
+			return catalog;
+		}
+	}
+
+	private void submit(final UpdateContext context, final OrderedPipeline pipeline, final ComputePrices prices,
+			final List<Entry<String, Map<String, List<String>>>> chunk) {
+		final var skus = List.copyOf(chunk);
+		chunk.clear();
+		context.getMetrics().increment("instance-chunks", 1);
+		pipeline.submit(() -> {
+			// The cost counters are owned by this task, and released with it
+			final var costs = new CostAccumulator();
+			final var writes = new ArrayList<Runnable>();
+			skus.forEach(e -> installSku(context, costs, prices, e.getKey(), e.getValue(), writes::add));
+			return writes;
+		});
+	}
+
+	private Catalog<ComputePrices> installComputePrices(final UpdateContext context,
+			final TriConsumer<ComputePrices, String, Map<String, List<String>>> installer) throws IOException {
 		// Fetch the remote prices stream and build the prices object
-		nextStep(context, String.format(STEP_COMPUTE, "retrieve-catalog"));
-		try (var curl = new CurlProcessor()) {
-			final var rawJson = Objects.toString(curl.get(getVmApi()), "{}");
-			final var prices = objectMapper.readValue(rawJson, ComputePrices.class);
-			nextStep(context, String.format(STEP_COMPUTE, "parse-catalog"));
+		startStep(context, String.format(STEP_COMPUTE, "retrieve-catalog"));
+		return streamPrices(context, getVmApi(), ComputePrices.class, CATALOG_HEADER, prices -> {
+			startStep(context, String.format(STEP_COMPUTE, "parse-catalog"));
 			commonPreparation(context, prices);
-			prices.getSoftwareLicenses().forEach(n -> prices.getSoftwareById().put(n.getId(), n.getName()));
+			prices.getSoftwareLicenses()
+					.forEach(n -> prices.getSoftwareIndex().put(n.getId(), StringUtils.upperCase(n.getName())));
 			prices.getSizesOneYear().forEach(n -> context.getSizesById().put(n.getId(), n.getName()));
 			prices.getSizesThreeYear().forEach(n -> context.getSizesById().put(n.getId(), n.getName()));
 			prices.getSizesFiveYear().forEach(n -> context.getSizesById().put(n.getId(), n.getName()));
@@ -116,9 +224,8 @@ public class AzurePriceImportVm extends AbstractVmAzureImport<ProvInstanceType>
 			prices.getOffers().forEach((key, value) -> parseOffer(context, key, value));
 
 			// Install SKUs and install prices
-			nextStep(context, String.format(STEP_COMPUTE, "install"));
-			prices.getSkus().forEach((sku, skuTerms) -> installSku(context, prices, sku, skuTerms));
-		}
+			startStep(context, String.format(STEP_COMPUTE, "install"));
+		}, installer);
 	}
 
 	/**
@@ -153,38 +260,55 @@ public class AzurePriceImportVm extends AbstractVmAzureImport<ProvInstanceType>
 	}
 
 	/**
-	 * Install the SKU and related prices associated to each term.
+	 * Compute the SKU prices associated to each term. The persisted entities are only updated by the given writes, so
+	 * the computation can be executed by any thread.
+	 *
+	 * @param costs  The cost counters of the current task, never shared between threads.
+	 * @param writes The consumer of the writes to apply in order, by the thread owning the persistence context.
 	 */
-	private void installSku(final UpdateContext context, final ComputePrices prices, final String sku,
-			final Map<String, List<String>> skuTerms) {
-		final var skuParts = sku.split("-");
-
+	private void installSku(final UpdateContext context, final CostAccumulator costs, final ComputePrices prices,
+			final String sku, final Map<String, List<String>> skuTerms, final Consumer<Runnable> writes) {
+		context.getMetrics().increment("instance-skus", 1);
 		// Resolve the related software from the most to the least specific match
-		final var software = prices.getSoftwareById().entrySet().stream().filter(e -> sku.startsWith(e.getKey()))
-				.findFirst().map(Entry::getValue).map(StringUtils::upperCase).orElse(null);
-		final var os = ObjectUtils.getIfNull(getOs(skuParts), VmOs.WINDOWS);
+		final var software = prices.getSoftwareIndex().getLongestPrefix(sku, 0);
+		final var os = ObjectUtils.getIfNull(getOs(sku), VmOs.WINDOWS);
 		if (isEnabledOs(context, os)) {
 			skuTerms.entrySet().stream().filter(e -> managedTerm(e.getKey()))
-					.forEach(e -> installSkuTerm(context, prices, sku, os, software,
-							installPriceTerm(context, prices, e.getKey(), sku), e.getKey(), e.getValue()));
+					.forEach(e -> installSkuTerm(context, costs, prices, sku, os, software, e.getKey(), e.getValue(),
+							writes));
 		}
 	}
 
-	private void installSkuTerm(final UpdateContext context, final ComputePrices prices, final String sku,
-			final VmOs os, final String software, final ProvInstancePriceTerm term, final String termName,
-			final List<String> components) {
-		final var code = term.getCode() + "/" + sku;
+	private void installSkuTerm(final UpdateContext context, final CostAccumulator costs, final ComputePrices prices,
+			final String sku, final VmOs os, final String software, final String termName,
+			final List<String> components, final Consumer<Runnable> writes) {
+		final var code = toTermCode(termName, sku) + "/" + sku;
 		final var byol = termName.contains("ahb");
-		installSkuComponents(context, prices, components, sku, termName, this::isEnabledType, (type, edition, storageEngine,
-				cost, r) -> installInstancePrice(context, term, os, code, type, cost, software, byol, r));
-	}
-
-	private VmOs getOs(final String[] parts) {
-		return Arrays.stream(parts).map(this::getOs).filter(Objects::nonNull).findFirst().orElse(null);
+		final var localCode = (byol ? "byol/" : "") + code;
+		final var skuPrices = computeSkuPrices(context, costs, prices, components, sku, termName, localCode,
+				this::isEnabledType);
+		writes.accept(() -> {
+			final var term = installPriceTerm(context, prices, termName, sku);
+			installSkuPrices(context, localCode, skuPrices, (type, edition, storageEngine, cost,
+					r) -> installInstancePrice(context, term, os, code, type, cost, software, byol, r));
+		});
 	}
 
-	private VmOs getOs(final String osName) {
-		return EnumUtils.getEnum(VmOs.class, osName.replace("redhat", "RHEL").replace("sles", "SUSE").toUpperCase());
+	/**
+	 * Return the first OS found in the parts of the SKU, such as <code>redhat</code> in
+	 * <code>redhat-d2sv3-standard</code>.
+	 */
+	private VmOs getOs(final String sku) {
+		for (var from = 0; from < sku.length();) {
+			final var separator = sku.indexOf('-', from);
+			final var to = separator < 0 ? sku.length() : separator;
+			final var os = OS_INDEX.get(sku, from, to);
+			if (os != null) {
+				return os;
+			}
+			from = to + 1;
+		}
+		return null;
 	}
 
 	/**
@@ -193,7 +317,8 @@ public class AzurePriceImportVm extends AbstractVmAzureImport<ProvInstanceType>
 	private void installInstancePrice(final UpdateContext context, final ProvInstancePriceTerm term, final VmOs os,
 			final String localCode, final ProvInstanceType type, final double monthlyCost, final String software,
 			final boolean byol, final String region) {
-		var price = context.getPrevious().computeIfAbsent(region + (byol ? "/byol/" : "/") + localCode, code -> {
+		final var code = region + (byol ? "/byol/" : "/") + localCode;
+		final var price = getPrevious(context, context.getPrevious(), code, code, ProvInstancePrice.class, () -> {
 			// New instance price (not update mode)
 			final var newPrice = new ProvInstancePrice();
 			newPrice.setCode(code);
@@ -219,7 +344,8 @@ public class AzurePriceImportVm extends AbstractVmAzureImport<ProvInstanceType>
 	 */
 	private ProvInstanceType installInstanceType(final UpdateContext context, final String code, final String name,
 			final boolean isBasic, final AzureVmOffer azType) {
-		final var type = context.getInstanceTypes().computeIfAbsent(isBasic ? code + "-b" : code.toLowerCase(), n -> {
+		final var typeCode = isBasic ? code + "-b" : code.toLowerCase();
+		final var type = context.getInstanceTypes().computeIfAbsent(typeCode, n -> {
 			// New instance type (not update mode)
 			final var newType = new ProvInstanceType();
 			newType.setNode(context.getNode());
@@ -4,13 +4,11 @@
 package org.ligoj.app.plugin.azure.catalog.vm;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import org.ligoj.app.plugin.azure.catalog.AbstractAzurePrice;
 import org.ligoj.app.plugin.azure.catalog.NamedResource;
+import org.ligoj.app.plugin.azure.catalog.PrefixTrie;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
@@ -31,9 +29,13 @@ public class ComputePrices extends AbstractAzurePrice<AzureVmOffer> {
 	@Setter
 	private List<NamedResource> softwareLicenses = new ArrayList<>();
 
+	/**
+	 * The upper case software license names indexed by their identifier, resolved by the longest identifier prefixing
+	 * a SKU.
+	 */
 	@Getter
 	@JsonIgnore
-	private final Map<String, String> softwareById = new TreeMap<>(Collections.reverseOrder());
+	private final PrefixTrie<String> softwareIndex = new PrefixTrie<>(false);
 
 	/**
 	 * All sizes.
@@ -0,0 +1,15 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.dao;
+
+import org.ligoj.app.plugin.azure.model.ProvAzureFingerprint;
+import org.ligoj.bootstrap.core.dao.RestRepository;
+
+/**
+ * {@link ProvAzureFingerprint} repository.
+ */
+public interface ProvAzureFingerprintRepository extends RestRepository<ProvAzureFingerprint, Integer> {
+
+	// All delegated to Spring Data
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.dao;
+
+import org.ligoj.app.plugin.azure.model.ProvAzureKeptPrice;
+import org.ligoj.bootstrap.core.dao.RestRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+/**
+ * {@link ProvAzureKeptPrice} repository, and the set based purge of the prices not kept by the running import. The
+ * prices used by a quote are never purged.
+ */
+public interface ProvAzureKeptPriceRepository extends RestRepository<ProvAzureKeptPrice, ProvAzureKeptPrice.Key> {
+
+	/**
+	 * Delete the kept price codes of a node.
+	 *
+	 * @param node The node identifier.
+	 */
+	@Modifying
+	@Query("DELETE FROM ProvAzureKeptPrice WHERE node = :node")
+	void deleteByNode(@Param("node") String node);
+
+	/**
+	 * Delete the instance prices of a node not kept and not used.
+	 *
+	 * @param node The node identifier.
+	 * @return The amount of deleted prices.
+	 */
+	@Modifying
+	@Query("DELETE FROM ProvInstancePrice p WHERE p.term IN (SELECT t FROM ProvInstancePriceTerm t WHERE t.node.id = :node)"
+			+ " AND NOT EXISTS (SELECT 1 FROM ProvAzureKeptPrice k WHERE k.node = :node AND k.code = p.code)"
+			+ " AND NOT EXISTS (SELECT 1 FROM ProvQuoteInstance q WHERE q.price = p)")
+	int purgeInstancePrices(@Param("node") String node);
+
+	/**
+	 * Delete the database prices of a node and an engine not kept and not used.
+	 *
+	 * @param node   The node identifier.
+	 * @param engine The database engine.
+	 * @return The amount of deleted prices.
+	 */
+	@Modifying
+	@Query("DELETE FROM ProvDatabasePrice p WHERE p.type IN (SELECT t FROM ProvDatabaseType t WHERE t.node.id = :node)"
+			+ " AND p.engine = :engine"
+			+ " AND NOT EXISTS (SELECT 1 FROM ProvAzureKeptPrice k WHERE k.node = :node AND k.code = p.code)"
+			+ " AND NOT EXISTS (SELECT 1 FROM ProvQuoteDatabase q WHERE q.price = p)")
+	int purgeDatabasePrices(@Param("node") String node, @Param("engine") String engine);
+
+	/**
+	 * Delete the storage prices of a node not kept and not used.
+	 *
+	 * @param node The node identifier.
+	 * @return The amount of deleted prices.
+	 */
+	@Modifying
+	@Query("DELETE FROM ProvStoragePrice p WHERE p.type IN (SELECT t FROM ProvStorageType t WHERE t.node.id = :node)"
+			+ " AND NOT EXISTS (SELECT 1 FROM ProvAzureKeptPrice k WHERE k.node = :node AND k.code = p.code)"
+			+ " AND NOT EXISTS (SELECT 1 FROM ProvQuoteStorage q WHERE q.price = p)")
+	int purgeStoragePrices(@Param("node") String node);
+}
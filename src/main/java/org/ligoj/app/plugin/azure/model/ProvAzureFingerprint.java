@@ -0,0 +1,53 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.model;
+
+import jakarta.persistence.Basic;
+import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.Lob;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import jakarta.validation.constraints.NotNull;
+
+import org.ligoj.app.model.Node;
+import org.springframework.data.jpa.domain.AbstractPersistable;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The SKU fingerprints of the last applied catalog of a node. Used to skip the SKUs whose prices are unchanged.
+ */
+@Getter
+@Setter
+@Entity
+@Table(name = "LIGOJ_PROV_AZURE_FINGERPRINT", uniqueConstraints = @UniqueConstraint(columnNames = { "node",
+		"catalog" }))
+public class ProvAzureFingerprint extends AbstractPersistable<Integer> {
+
+	/**
+	 * The related node.
+	 */
+	@ManyToOne
+	@NotNull
+	@JsonIgnore
+	private Node node;
+
+	/**
+	 * The catalog name, such as <code>virtual-machines</code>.
+	 */
+	@NotNull
+	private String catalog;
+
+	/**
+	 * The compressed fingerprints. Key is the price code without the region.
+	 */
+	@Lob
+	@Basic(fetch = FetchType.LAZY)
+	private byte[] fingerprints;
+}
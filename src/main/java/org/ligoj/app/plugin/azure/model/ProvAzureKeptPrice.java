@@ -0,0 +1,54 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.azure.model;
+
+import java.io.Serializable;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Table;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A price code kept by the running import of a node. Used by the set based purge of the prices not installed by this
+ * import.
+ */
+@Getter
+@Setter
+@Entity
+@IdClass(ProvAzureKeptPrice.Key.class)
+@Table(name = "LIGOJ_PROV_AZURE_KEPT_PRICE")
+public class ProvAzureKeptPrice {
+
+	/**
+	 * The related node identifier.
+	 */
+	@Id
+	private String node;
+
+	/**
+	 * The kept price code.
+	 */
+	@Id
+	private String code;
+
+	/**
+	 * The composite identifier.
+	 */
+	@Getter
+	@Setter
+	@EqualsAndHashCode
+	public static class Key implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String node;
+
+		private String code;
+	}
+}
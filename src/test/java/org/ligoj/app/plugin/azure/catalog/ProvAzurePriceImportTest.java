@@ -3,24 +3,53 @@
  */
 package org.ligoj.app.plugin.azure.catalog;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
 import jakarta.annotation.PostConstruct;
+import jakarta.persistence.metamodel.Attribute;
 import jakarta.transaction.Transactional;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.reflect.MethodUtils;
 import org.apache.hc.core5.http.HttpStatus;
+import org.hibernate.Session;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.ligoj.app.AbstractServerTest;
 import org.ligoj.app.iam.model.CacheCompany;
 import org.ligoj.app.iam.model.CacheUser;
 import org.ligoj.app.model.*;
 import org.ligoj.app.plugin.azure.ProvAzurePluginResource;
 import org.ligoj.app.plugin.azure.catalog.database.AzurePriceImportDatabase;
+import org.ligoj.app.plugin.azure.catalog.database.OfferClassifier;
 import org.ligoj.app.plugin.azure.catalog.disk.AzurePriceImportDisk;
 import org.ligoj.app.plugin.azure.catalog.support.AzurePriceImportSupport;
 import org.ligoj.app.plugin.azure.catalog.vm.AzurePriceImportVm;
+import org.ligoj.app.plugin.azure.catalog.vm.ComputePrices;
+import org.ligoj.app.plugin.azure.dao.ProvAzureFingerprintRepository;
+import org.ligoj.app.plugin.azure.dao.ProvAzureKeptPriceRepository;
 import org.ligoj.app.plugin.prov.ProvResource;
 import org.ligoj.app.plugin.prov.QuoteVo;
 import org.ligoj.app.plugin.prov.catalog.AbstractImportCatalogResource;
@@ -37,15 +66,19 @@ import org.ligoj.app.plugin.prov.quote.storage.QuoteStorageEditionVo;
 import org.ligoj.app.plugin.prov.quote.storage.QuoteStorageQuery;
 import org.ligoj.app.plugin.prov.quote.support.ProvQuoteSupportResource;
 import org.ligoj.bootstrap.resource.system.configuration.ConfigurationResource;
+import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Persistable;
 import org.springframework.test.annotation.Rollback;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
 
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.nio.charset.StandardCharsets;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 
@@ -60,6 +93,8 @@ class ProvAzurePriceImportTest extends AbstractServerTest {
 
 	private static final double DELTA = 0.001;
 
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
 	private AzurePriceImport resource;
 
 	@Autowired
@@ -83,6 +118,15 @@ class ProvAzurePriceImportTest extends AbstractServerTest {
 	@Autowired
 	private ProvDatabasePriceRepository bpRepository;
 
+	@Autowired
+	private ProvAzureKeptPriceRepository keptPriceRepository;
+
+	@Autowired
+	private ProvStoragePriceRepository spRepository;
+
+	@Autowired
+	private ProvAzureFingerprintRepository fingerprintRepository;
+
 	@Autowired
 	private ProvInstanceTypeRepository itRepository;
 
@@ -205,7 +249,8 @@ class ProvAzurePriceImportTest extends AbstractServerTest {
 		Assertions.assertEquals("North Europe", lookup.getPrice().getLocation().getDescription());
 		checkImportStatus(61);
 
-		// Install again to check the update without change
+		// Install again to check the update without change, the unchanged catalogs would be skipped otherwise
+		forgetCatalogs();
 		resetImportTask();
 		resource.install(false);
 		provResource.updateCost(subscription);
@@ -355,6 +400,1098 @@ class ProvAzurePriceImportTest extends AbstractServerTest {
 		Assertions.assertEquals("SQL SERVER", lookupB.getPrice().getStorageEngine());
 	}
 
+	@Test
+	void installConcurrent() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var sequential = snapshot();
+		Assertions.assertFalse(sequential.isEmpty());
+
+		// Install again the same catalog with background retrieval and all cost attributes updated
+		configuration.put(AzurePriceImport.CONF_CONCURRENT, "true");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(sequential, snapshot());
+
+		// The disk catalog is downloaded while the previous phases are installed
+		final var metrics = resource.getLastMetrics();
+		Assertions.assertTrue(getPayload(metrics, "/managed-disks/").getDownloadStart() < metrics
+				.getStart("disk-initialize"));
+
+		// The progress is the same
+		final var status = this.resource.getImportCatalogResource().getTask("service:prov:azure");
+		Assertions.assertEquals(25, status.getDone());
+		Assertions.assertEquals(44, status.getWorkload());
+		Assertions.assertEquals("support", status.getPhase());
+	}
+
+	@Test
+	void installBatched() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var single = snapshot();
+
+		// Install again the same catalog with small batches, detaching the written prices on each flush
+		final var batches = resource.getLastMetrics().get("batches");
+		configuration.put(AzurePriceImport.CONF_BATCH_SIZE, "3");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(single, snapshot());
+
+		// Each batch writes at most 3 prices
+		final var metrics = resource.getLastMetrics();
+		final var written = metrics.getCounters().entrySet().stream()
+				.filter(e -> e.getKey().endsWith("-" + ImportMetrics.INSERTED)
+						|| e.getKey().endsWith("-" + ImportMetrics.UPDATED))
+				.mapToLong(Map.Entry::getValue).sum();
+		Assertions.assertTrue(written > 0);
+		Assertions.assertTrue(metrics.get("batches") * 3 >= written);
+		Assertions.assertTrue(metrics.get("batches") > batches);
+	}
+
+	@Test
+	void installNotModified() throws Exception {
+		mockServer();
+		final var vm = IOUtils.toString(
+				new ClassPathResource("mock-server/azure/virtual-machines.json").getInputStream(),
+				StandardCharsets.UTF_8);
+		httpServer.stubFor(get(urlEqualTo("/virtual-machines/calculator/")).willReturn(
+				aResponse().withStatus(HttpStatus.SC_OK).withHeader("ETag", "\"v1\"").withBody(vm)));
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var installed = snapshot();
+
+		// Alter a price to check the unchanged catalogs are not installed again
+		final var price = ipRepository.findBy("code", "europe-north/payg/linux-a1-basic");
+		final var cost = price.getCost();
+		price.setCost(1d);
+		em.flush();
+		em.clear();
+
+		// The VM catalog is not modified, the other catalogs have the same content
+		httpServer.stubFor(get(urlEqualTo("/virtual-machines/calculator/")).withHeader("If-None-Match",
+				equalTo("\"v1\"")).willReturn(aResponse().withStatus(HttpStatus.SC_NOT_MODIFIED)));
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		httpServer.verify(getRequestedFor(urlEqualTo("/virtual-machines/calculator/")).withHeader("If-None-Match",
+				equalTo("\"v1\"")));
+		Assertions.assertEquals(1d, ipRepository.findBy("code", "europe-north/payg/linux-a1-basic").getCost());
+		final var status = this.resource.getImportCatalogResource().getTask("service:prov:azure");
+		Assertions.assertEquals(25, status.getDone());
+		Assertions.assertEquals(44, status.getWorkload());
+		Assertions.assertEquals("support", status.getPhase());
+
+		// The force mode installs again all catalogs
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(cost, ipRepository.findBy("code", "europe-north/payg/linux-a1-basic").getCost());
+		Assertions.assertEquals(installed, snapshot());
+	}
+
+	@Test
+	void installUnchangedSkus() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var installed = snapshot();
+
+		// Alter a price to check the unchanged SKUs are not installed again
+		final var price = ipRepository.findBy("code", "europe-north/payg/linux-a1-basic");
+		price.setCost(1d);
+
+		// Delete a price to check the SKUs with a missing previous price are installed again
+		ipRepository.delete(ipRepository.findBy("code", "europe-north/payg/linux-a1-standard"));
+		em.flush();
+		em.clear();
+
+		// Same prices in a different catalog content, with other region identifiers
+		final var catalog = readSkusLast();
+		Collections.reverse((List<?>) catalog.get("regions"));
+		mockCatalog("/virtual-machines/calculator/", catalog);
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+
+		// The altered price is kept, and not purged, the deleted one is installed again
+		Assertions.assertEquals(1d, ipRepository.findBy("code", "europe-north/payg/linux-a1-basic").getCost());
+		final var updated = snapshot();
+		Assertions.assertEquals(installed.keySet(), updated.keySet());
+		Assertions.assertEquals(installed.get("instance/europe-north/payg/linux-a1-standard"),
+				updated.get("instance/europe-north/payg/linux-a1-standard"));
+	}
+
+	@Test
+	void installOtherFingerprints() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var installed = snapshot();
+
+		// Fingerprints of another format, such as the ones without price count
+		final var bytes = new ByteArrayOutputStream();
+		try (var output = new DataOutputStream(new GZIPOutputStream(bytes))) {
+			output.writeInt(1);
+			output.writeUTF("payg/linux-a1-basic");
+			output.writeLong(0);
+		}
+		fingerprintRepository.findBy("catalog", "virtual-machines").setFingerprints(bytes.toByteArray());
+		ipRepository.findBy("code", "europe-north/payg/linux-a1-basic").setCost(1d);
+		em.flush();
+		em.clear();
+
+		// Same prices in a different catalog content, all SKUs are installed again
+		final var catalog = readSkusLast();
+		Collections.reverse((List<?>) catalog.get("regions"));
+		mockCatalog("/virtual-machines/calculator/", catalog);
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(installed, snapshot());
+		Assertions.assertEquals(1, resource.getLastMetrics().get("instance-" + ImportMetrics.UPDATED));
+	}
+
+	@Test
+	void installDatabaseChanged() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var expected = snapshot();
+		final var obsolete = spRepository.findAllBy("type.code", "sql-gp");
+		Assertions.assertFalse(obsolete.isEmpty());
+		obsolete.forEach(p -> expected.remove("storage/" + p.getCode()));
+
+		// Only the SQL Server catalog changes, its general purpose storage is no more available
+		final var catalog = readCatalog("sql-database");
+		((Map<?, ?>) catalog.get("offers")).remove("elastic-vcore-general-purpose-storage");
+		mockCatalog("/sql-database/calculator/", catalog);
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+
+		// The obsolete database storage prices are purged with the unchanged managed disk catalog
+		Assertions.assertEquals(expected, snapshot());
+		final var metrics = resource.getLastMetrics();
+		Assertions.assertEquals(obsolete.size(), metrics.get("storage-" + ImportMetrics.PURGED));
+		Assertions.assertTrue(metrics.get("storage-" + ImportMetrics.UNCHANGED) > 0);
+		Assertions.assertTrue(metrics.get("instance-" + ImportMetrics.UNCHANGED) > 0);
+		Assertions.assertTrue(metrics.get("database-" + ImportMetrics.UNCHANGED) > 0);
+		Assertions.assertEquals(25, resource.getImportCatalogResource().getTask("service:prov:azure").getDone());
+
+		// Nothing changes, nothing is purged
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(expected, snapshot());
+		Assertions.assertEquals(0, resource.getLastMetrics().get("storage-" + ImportMetrics.PURGED));
+	}
+
+	@Test
+	void installResume() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var cost = ipRepository.findBy("code", "europe-north/payg/linux-a1-basic").getCost();
+
+		// The last catalog is invalid, the import fails after the VM and the first engines are installed
+		httpServer.stubFor(get(urlEqualTo("/sql-database/calculator/"))
+				.willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("{\"offers\":")));
+		resetImportTask();
+		Assertions.assertThrows(IOException.class, () -> resource.install(true));
+		Assertions.assertNotNull(configuration.get(AbstractAzureImport.CONF_CHECKPOINTS));
+
+		// Alter a price to check the completed catalogs are not installed again
+		final var price = ipRepository.findBy("code", "europe-north/payg/linux-a1-basic");
+		price.setCost(1d);
+		em.flush();
+		em.clear();
+
+		// Retry the failed import, resumed even in force mode
+		mockResource("/sql-database/calculator/", "sql-database");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(1d, ipRepository.findBy("code", "europe-north/payg/linux-a1-basic").getCost());
+		Assertions.assertTrue(bpRepository.countBy("engine", "SQL SERVER") > 0);
+		final var status = this.resource.getImportCatalogResource().getTask("service:prov:azure");
+		Assertions.assertEquals(25, status.getDone());
+		Assertions.assertEquals(44, status.getWorkload());
+
+		// The import succeeded, the next one starts from the beginning
+		Assertions.assertNull(configuration.get(AbstractAzureImport.CONF_CHECKPOINTS));
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(cost, ipRepository.findBy("code", "europe-north/payg/linux-a1-basic").getCost());
+	}
+
+	@Test
+	void installMirror(@TempDir final Path mirror) throws Exception {
+		mockServer();
+		configuration.put(AzurePriceImport.CONF_MIRROR, "record");
+		configuration.put(AzurePriceImport.CONF_MIRROR_PATH, mirror.toString());
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var recorded = snapshot();
+		try (var files = Files.list(mirror)) {
+			Assertions.assertEquals(5, files.filter(f -> f.toString().endsWith(".json.gz")).count());
+		}
+
+		// Replay the import without any request
+		httpServer.resetAll();
+		configuration.put(AzurePriceImport.CONF_MIRROR, "replay");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(recorded, snapshot());
+		httpServer.verify(0, getRequestedFor(anyUrl()));
+	}
+
+	@Test
+	void installStreamedSkus() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var buffered = snapshot();
+		Assertions.assertEquals(1, resource.getLastMetrics().get("catalogs-buffered"));
+		Assertions.assertEquals(0, resource.getLastMetrics().get("catalogs-streamed"));
+
+		// Same catalog with the SKUs after all other properties: SKUs are installed while they are read
+		mockCatalog("/virtual-machines/calculator/", readSkusLast());
+
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(buffered, snapshot());
+		Assertions.assertEquals(0, resource.getLastMetrics().get("catalogs-buffered"));
+		Assertions.assertEquals(1, resource.getLastMetrics().get("catalogs-streamed"));
+	}
+
+	@Test
+	void installCompressed() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var plain = snapshot();
+
+		// Same catalog, compressed on the wire
+		final var bytes = new ByteArrayOutputStream();
+		try (var gzip = new GZIPOutputStream(bytes);
+				var vm = new ClassPathResource("mock-server/azure/virtual-machines.json").getInputStream()) {
+			vm.transferTo(gzip);
+		}
+		httpServer.stubFor(get(urlEqualTo("/virtual-machines/calculator/")).willReturn(aResponse()
+				.withStatus(HttpStatus.SC_OK).withHeader("Content-Encoding", "gzip").withBody(bytes.toByteArray())));
+		configuration.put(CatalogFetcher.CONF_CONNECT_TIMEOUT, "5");
+		configuration.put(CatalogFetcher.CONF_READ_TIMEOUT, "5");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(plain, snapshot());
+		httpServer.verify(getRequestedFor(urlEqualTo("/virtual-machines/calculator/")).withHeader("Accept-Encoding",
+				containing("gzip")));
+		final var payload = getPayload(resource.getLastMetrics(), "/virtual-machines/");
+		Assertions.assertTrue(payload.getWireBytes() < payload.getBytes());
+	}
+
+	@Test
+	void installDatabaseEngines() throws Exception {
+		mockServer();
+		configuration.put(AzurePriceImportDatabase.CONF_ETYPE, "(MYSQL|POSTGRESQL)");
+		resource.install(false);
+		em.flush();
+		em.clear();
+
+		// Only the enabled engines are fetched, once
+		httpServer.verify(1, getRequestedFor(urlEqualTo("/mysql/calculator/")));
+		httpServer.verify(1, getRequestedFor(urlEqualTo("/postgresql/calculator/")));
+		httpServer.verify(0, getRequestedFor(urlEqualTo("/mariadb/calculator/")));
+		httpServer.verify(0, getRequestedFor(urlEqualTo("/sql-database/calculator/")));
+		Assertions.assertFalse(bpRepository.findAll().isEmpty());
+		Assertions.assertTrue(bpRepository.findAll().stream().noneMatch(p -> "SQL SERVER".equals(p.getEngine())));
+		Assertions.assertEquals(25, resource.getImportCatalogResource().getTask("service:prov:azure").getDone());
+	}
+
+	@Test
+	void installDatabaseLookAhead() throws Exception {
+		mockServer();
+		httpServer.stubFor(get(urlEqualTo("/mysql/calculator/"))
+				.willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("{\"offers\":")));
+		Assertions.assertThrows(IOException.class, () -> resource.install(false));
+
+		// Without background retrieval, the next engine catalog is not retrieved
+		httpServer.verify(1, getRequestedFor(urlEqualTo("/mysql/calculator/")));
+		httpServer.verify(0, getRequestedFor(urlEqualTo("/mariadb/calculator/")));
+
+		// Only the next engine catalog is retrieved while the failed one is installed
+		configuration.put(AzurePriceImport.CONF_CONCURRENT, "true");
+		httpServer.resetRequests();
+		resetImportTask();
+		Assertions.assertThrows(IOException.class, () -> resource.install(false));
+		httpServer.verify(1, getRequestedFor(urlEqualTo("/mysql/calculator/")));
+		httpServer.verify(1, getRequestedFor(urlEqualTo("/mariadb/calculator/")));
+		httpServer.verify(0, getRequestedFor(urlEqualTo("/postgresql/calculator/")));
+		httpServer.verify(0, getRequestedFor(urlEqualTo("/sql-database/calculator/")));
+	}
+
+	@Test
+	void installParallel() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var sequential = snapshot();
+		Assertions.assertEquals(0, resource.getLastMetrics().get("instance-chunks"));
+
+		// Same prices computed by several workers
+		configuration.put(AzurePriceImportVm.CONF_PARALLELISM, "4");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(sequential, snapshot());
+		Assertions.assertTrue(resource.getLastMetrics().get("instance-chunks") > 0);
+		Assertions.assertEquals(25, resource.getImportCatalogResource().getTask("service:prov:azure").getDone());
+
+		// The price codes collected by the workers are shared with the purge
+		configuration.put(AzurePriceImportVm.CONF_PARALLELISM, "1");
+		configuration.put(AzurePriceImportBase.CONF_REGIONS, "europe-north");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		final var purged = snapshot();
+		Assertions.assertNotEquals(sequential, purged);
+		configuration.delete(AzurePriceImportBase.CONF_REGIONS);
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		configuration.put(AzurePriceImportVm.CONF_PARALLELISM, "4");
+		configuration.put(AzurePriceImportBase.CONF_REGIONS, "europe-north");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(purged, snapshot());
+		Assertions.assertTrue(resource.getLastMetrics().get("instance-" + ImportMetrics.PURGED) > 0);
+		Assertions.assertTrue(resource.getLastMetrics().get("instance-" + ImportMetrics.UPDATED) > 0);
+	}
+
+	@Test
+	void installParallelFailure() throws Exception {
+		mockServer();
+		final var catalog = readCatalog("virtual-machines");
+
+		// Several chunks of SKUs, the second one contains an invalid SKU
+		@SuppressWarnings("unchecked")
+		final var skus = (Map<String, Object>) catalog.remove("skus");
+		final var copies = new LinkedHashMap<String, Object>();
+		for (var c = 0; c < 10; c++) {
+			for (final var sku : skus.entrySet()) {
+				copies.put(sku.getKey() + "-c" + c, sku.getValue());
+				if (copies.size() == 100) {
+					copies.put("linux-broken-standard", Map.of("payg", Collections.singletonList(null)));
+				}
+			}
+		}
+		catalog.put("skus", copies);
+		mockCatalog("/virtual-machines/calculator/", catalog);
+		configuration.put(AzurePriceImportVm.CONF_PARALLELISM, "2");
+		Assertions.assertThrows(Exception.class, () -> resource.install(false));
+		em.flush();
+		em.clear();
+
+		// Only the chunks before the failed one are installed, without fingerprint
+		final var codes = ipRepository.findAll().stream().map(ProvInstancePrice::getCode).toList();
+		Assertions.assertTrue(codes.stream().anyMatch(c -> c.endsWith("-c0")));
+		Assertions.assertTrue(codes.stream().noneMatch(c -> c.endsWith("-c8") || c.endsWith("-c9")));
+		Assertions.assertEquals(0, fingerprintRepository.count());
+	}
+
+	@Test
+	void orderedPipelineClose() throws Exception {
+		final var applied = new ConcurrentLinkedQueue<String>();
+		final var started = new CountDownLatch(1);
+		final var finished = new AtomicBoolean();
+		final var pipeline = new OrderedPipeline(2);
+		try (pipeline) {
+			pipeline.submit(() -> List.of(() -> applied.add("first")));
+			pipeline.submit(() -> {
+				throw new IllegalStateException("worker");
+			});
+			pipeline.submit(() -> {
+				started.countDown();
+				try {
+					Thread.sleep(200);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finished.set(true);
+				return List.of(() -> applied.add("last"));
+			});
+			started.await();
+			Assertions.assertThrows(IllegalStateException.class, pipeline::drain);
+		}
+
+		// The running task is awaited, the writes after the failure are not applied
+		Assertions.assertTrue(finished.get());
+		Assertions.assertEquals(List.of("first"), List.copyOf(applied));
+	}
+
+	@Test
+	void installParallelChunks() throws Exception {
+		mockServer();
+		final var catalog = readCatalog("virtual-machines");
+
+		// Several chunks of SKUs sharing the same regions, terms and types
+		@SuppressWarnings("unchecked")
+		final var skus = (Map<String, Object>) catalog.remove("skus");
+		final var copies = new LinkedHashMap<String, Object>();
+		for (var c = 0; c < 10; c++) {
+			for (final var sku : skus.entrySet()) {
+				copies.put(sku.getKey() + "-c" + c, sku.getValue());
+			}
+		}
+		catalog.put("skus", copies);
+		mockCatalog("/virtual-machines/calculator/", catalog);
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var sequential = fullSnapshot();
+
+		// Same entities and prices when the chunks are computed by several workers
+		configuration.put(AzurePriceImportVm.CONF_PARALLELISM, "4");
+		forgetCatalogs();
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(sequential, fullSnapshot());
+		Assertions.assertTrue(resource.getLastMetrics().get("instance-chunks") > 1);
+		Assertions.assertEquals(0, resource.getLastMetrics().get("instance-" + ImportMetrics.PURGED));
+
+		// The codes of the unchanged SKUs are collected by the writer, so the kept prices are not purged
+		Collections.reverse((List<?>) catalog.get("regions"));
+		mockCatalog("/virtual-machines/calculator/", catalog);
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(sequential, fullSnapshot());
+		Assertions.assertEquals(0, resource.getLastMetrics().get("instance-" + ImportMetrics.PURGED));
+		Assertions.assertEquals(0, resource.getLastMetrics().get("instance-" + ImportMetrics.UPDATED));
+	}
+
+	@Test
+	void prefixTrie() {
+		final var trie = new PrefixTrie<String>(false);
+		trie.put("sql", "SQL");
+		trie.put("sql-enterprise", "SQL ENTERPRISE");
+		trie.put("redhat", "RHEL");
+		Assertions.assertEquals("SQL ENTERPRISE", trie.getLongestPrefix("sql-enterprise-d2v3", 0));
+		Assertions.assertEquals("SQL", trie.getLongestPrefix("sql-standard-d2v3", 0));
+		Assertions.assertNull(trie.getLongestPrefix("linux-sql", 0));
+		Assertions.assertEquals("SQL", trie.getLongestPrefix("linux-sql", 6));
+		Assertions.assertEquals("RHEL", trie.get("d2-redhat-byol", 3, 9));
+		Assertions.assertNull(trie.get("d2-Redhat-byol", 3, 9));
+		Assertions.assertNull(trie.get("d2-redhat-byol", 3, 8));
+
+		final var ignoreCase = new PrefixTrie<String>(true);
+		ignoreCase.put("RedHat", "RHEL");
+		Assertions.assertEquals("RHEL", ignoreCase.get("d2-REDHAT-byol", 3, 9));
+	}
+
+	@Test
+	void offerClassifier() {
+		final var classifier = new OfferClassifier<String>(List.of(Map.entry("(basic|gp)-storage", "storage"),
+				Map.entry("(basic|gp)-compute-g(\\d+)-(\\d+)", "compute"), Map.entry("(.*)-compute-(.*)", "other")));
+		final var match = classifier.classify("gp-compute-g5-16");
+		Assertions.assertEquals("compute", match.getValue());
+		Assertions.assertEquals(3, match.groupCount());
+		Assertions.assertEquals("gp-compute-g5-16", match.group());
+		Assertions.assertEquals("gp", match.group(1));
+		Assertions.assertEquals("5", match.group(2));
+		Assertions.assertEquals("16", match.group(3));
+		Assertions.assertEquals(12, match.start(2));
+		Assertions.assertThrows(IndexOutOfBoundsException.class, () -> match.group(4));
+
+		// Later rule, relative groups
+		final var other = classifier.classify("mo-compute-g5");
+		Assertions.assertEquals("other", other.getValue());
+		Assertions.assertEquals("mo", other.group(1));
+		Assertions.assertEquals("g5", other.group(2));
+		Assertions.assertEquals("storage", classifier.classify("basic-storage").getValue());
+		Assertions.assertNull(classifier.classify("basic-storage-lrs"));
+	}
+
+	@Test
+	void regionPricesMissing() throws IOException {
+		final var index = new RegionIndex();
+		final var north = index.register("europe-north");
+		final var prices = MAPPER.readerFor(RegionPrices.class).withAttribute(RegionIndex.class, index)
+				.<RegionPrices>readValue("{\"europe-north\":{\"value\":0.1},\"europe-west\":{},"
+						+ "\"us-east\":{\"value\":\"NaN\"},\"us-west\":{\"value\":null}}");
+		Assertions.assertEquals(0.1, prices.get(north), DELTA);
+		Assertions.assertFalse(prices.has(index.getId("europe-west")));
+		Assertions.assertFalse(prices.has(index.getId("us-east")));
+		Assertions.assertFalse(prices.has(index.getId("us-west")));
+
+		// Regions not in this catalog
+		Assertions.assertFalse(prices.has(RegionIndex.GLOBAL_ID));
+		Assertions.assertFalse(prices.has(index.getId("asia-east")));
+		Assertions.assertTrue(Double.isNaN(prices.get(prices.length())));
+		final var visited = new ArrayList<Integer>();
+		prices.forEach((region, value) -> visited.add(region));
+		Assertions.assertEquals(List.of(north), visited);
+
+		// No region index
+		Assertions.assertThrows(IOException.class,
+				() -> MAPPER.readerFor(RegionPrices.class).readValue("{\"europe-north\":{\"value\":0.1}}"));
+	}
+
+	@Test
+	void regionPricesUnknownRegion() throws IOException {
+		final var index = new RegionIndex();
+		index.register("europe-north");
+		final var reader = MAPPER.readerFor(RegionPrices.class).withAttribute(RegionIndex.class, index);
+		final RegionPrices first = reader.readValue("{\"europe-north\":{\"value\":1}}");
+		Assertions.assertEquals(2, first.length());
+
+		// Regions registered after the index was built, beyond the initial capacity of the index
+		final var json = new StringBuilder("{");
+		for (var i = 0; i < 100; i++) {
+			json.append(i == 0 ? "" : ",").append("\"region-").append(i).append("\":{\"value\":").append(i).append('}');
+		}
+		final RegionPrices prices = reader.readValue(json.append('}').toString());
+		Assertions.assertEquals(102, index.size());
+		Assertions.assertTrue(prices.length() >= 102);
+		for (var i = 0; i < 100; i++) {
+			final var region = index.getId("region-" + i);
+			Assertions.assertEquals("region-" + i, index.getName(region));
+			Assertions.assertEquals(i, prices.get(region), DELTA);
+		}
+		Assertions.assertFalse(prices.has(index.getId("europe-north")));
+
+		// The prices read before are not affected by the new regions
+		Assertions.assertEquals(1, first.get(index.getId("europe-north")), DELTA);
+		Assertions.assertFalse(first.has(index.getId("region-99")));
+	}
+
+	@Test
+	void costAccumulatorReset() {
+		final var costs = new CostAccumulator();
+
+		// First SKU, one region beyond the initial capacity
+		costs.add(new int[] { 1, 2, 70 }, new double[] { 0.1, 0.2, 0.3 }, AbstractAzureImport.PER_HOUR);
+		costs.add(2, AbstractAzureImport.PER_CORE, 0.01);
+		costs.addGlobal(AbstractAzureImport.PER_MONTH, 5);
+		Assertions.assertEquals(1, costs.nextRegion(0));
+		Assertions.assertEquals(2, costs.nextRegion(2));
+		Assertions.assertEquals(70, costs.nextRegion(3));
+		Assertions.assertEquals(-1, costs.nextRegion(71));
+		Assertions.assertEquals(73, costs.getMonthlyCost(1, 4, 730), DELTA);
+		Assertions.assertEquals(175.2, costs.getMonthlyCost(2, 4, 730), DELTA);
+		Assertions.assertEquals(219, costs.getMonthlyCost(70, 4, 730), DELTA);
+		Assertions.assertEquals(5, costs.getGlobalMonthlyCost(4, 730), DELTA);
+
+		// Second SKU on disjoint regions, nothing is left from the first one
+		costs.reset();
+		Assertions.assertEquals(-1, costs.nextRegion(0));
+		costs.add(new int[] { 3, 4 }, new double[] { 0.5, 0.6 }, AbstractAzureImport.PER_HOUR);
+		costs.add(5, -1, 1);
+		costs.addGlobal(-1, 1);
+		Assertions.assertEquals(3, costs.nextRegion(0));
+		Assertions.assertEquals(4, costs.nextRegion(4));
+		Assertions.assertEquals(5, costs.nextRegion(5));
+		Assertions.assertEquals(-1, costs.nextRegion(6));
+		Assertions.assertEquals(365, costs.getMonthlyCost(3, 4, 730), DELTA);
+		Assertions.assertEquals(438, costs.getMonthlyCost(4, 4, 730), DELTA);
+		Assertions.assertEquals(0, costs.getMonthlyCost(5, 4, 730), DELTA);
+		Assertions.assertEquals(0, costs.getMonthlyCost(1, 4, 730), DELTA);
+		Assertions.assertEquals(0, costs.getMonthlyCost(2, 4, 730), DELTA);
+		Assertions.assertEquals(0, costs.getMonthlyCost(70, 4, 730), DELTA);
+		Assertions.assertEquals(0, costs.getGlobalMonthlyCost(4, 730), DELTA);
+	}
+
+	@Test
+	void regionPricesMalformed() throws IOException {
+		final var index = new RegionIndex();
+		final ComputePrices prices = MAPPER.readerFor(ComputePrices.class).withAttribute(RegionIndex.class, index)
+				.readValue("{\"offers\":{\"a1\":{\"cores\":1,\"prices\":{\"perhour\":{"
+						+ "\"object\":{\"value\":{\"value\":1},\"other\":[1,{\"value\":2}]},"
+						+ "\"scalar\":0.5,\"array\":[{\"value\":3}],\"text\":{\"value\":\"0.4\"},"
+						+ "\"valid\":{\"other\":{\"value\":5},\"value\":0.3}},\"perunknown\":{}},"
+						+ "\"unknown\":[{}]}},\"skus\":{\"a1\":{\"payg\":[\"a1--perhour\"]}}}");
+		final var offer = prices.getOffers().get("a1");
+		Assertions.assertEquals(1, offer.getCores());
+		final var perHour = offer.getPrices().get("perhour");
+		Assertions.assertFalse(perHour.has(index.getId("object")));
+		Assertions.assertFalse(perHour.has(index.getId("scalar")));
+		Assertions.assertFalse(perHour.has(index.getId("array")));
+		Assertions.assertFalse(perHour.has(index.getId("text")));
+		Assertions.assertEquals(0.3, perHour.get(index.getId("valid")), DELTA);
+		final var unknown = new ArrayList<Integer>();
+		offer.getPrices().get("perunknown").forEach((region, value) -> unknown.add(region));
+		Assertions.assertTrue(unknown.isEmpty());
+		Assertions.assertEquals(List.of("a1--perhour"), prices.getSkus().get("a1").get("payg"));
+
+		// Truncated price object
+		final var reader = MAPPER.readerFor(RegionPrices.class).withAttribute(RegionIndex.class, index);
+		Assertions.assertThrows(IOException.class, () -> reader.readValue("{\"valid\":{\"value\":"));
+	}
+
+	@Test
+	void installBulkPurge() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+
+		// A price used by a quote in a region to be disabled
+		final var used = ipRepository.findAll().stream().filter(p -> !p.getCode().startsWith("europe-north/"))
+				.findFirst().orElseThrow();
+		final var ivo = new QuoteInstanceEditionVo();
+		ivo.setCpu(1d);
+		ivo.setRam(1);
+		ivo.setPrice(used.getId());
+		ivo.setName("used");
+		ivo.setSubscription(subscription);
+		qiResource.create(ivo);
+		em.flush();
+		em.clear();
+
+		// Purge the other regions, entity by entity
+		configuration.put(AzurePriceImportBase.CONF_REGIONS, "europe-north");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		final var purged = snapshot();
+		Assertions.assertTrue(purged.containsKey("instance/" + used.getCode()));
+
+		// Restore the other regions
+		configuration.delete(AzurePriceImportBase.CONF_REGIONS);
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertNotEquals(purged, snapshot());
+
+		// Same purge with set based statements
+		configuration.put(AzurePriceImportBase.CONF_REGIONS, "europe-north");
+		configuration.put(AzurePriceImport.CONF_PURGE, "bulk");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(purged, snapshot());
+		Assertions.assertEquals(0, keptPriceRepository.count());
+	}
+
+	@Test
+	void installPreviousProjection() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var expected = snapshot();
+
+		// Alter the cost of previous prices, then update without force
+		final var altered = ipRepository.findAll().getFirst();
+		final var altered2 = ipRepository.findAll().getLast();
+		final var dbAltered = bpRepository.findAll().getFirst();
+		final var cost = altered.getCost();
+		final var cost2 = altered2.getCost();
+		altered.setCost(cost + 1);
+		altered2.setCost(cost2 + 2);
+		dbAltered.setCost(dbAltered.getCost() + 1);
+		em.flush();
+		em.clear();
+
+		// The same catalogs are installed again, not skipped as unchanged
+		forgetCatalogs();
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+
+		// Only the altered prices are loaded by batch and updated, the same managed entities with all their attributes
+		final var metrics = resource.getLastMetrics();
+		Assertions.assertEquals(2, metrics.get("instance-" + ImportMetrics.UPDATED));
+		Assertions.assertEquals(1, metrics.get("database-" + ImportMetrics.UPDATED));
+		Assertions.assertEquals(0, metrics.get("instance-" + ImportMetrics.INSERTED));
+		Assertions.assertTrue(metrics.get("instance-" + ImportMetrics.UNCHANGED) > 0);
+		Assertions.assertEquals(expected, snapshot());
+		final var updated = ipRepository.findOneExpected(altered.getId());
+		Assertions.assertEquals(cost, updated.getCost(), DELTA);
+		Assertions.assertEquals(cost2, ipRepository.findOneExpected(altered2.getId()).getCost(), DELTA);
+		Assertions.assertEquals(altered.getType().getCode(), updated.getType().getCode());
+		Assertions.assertEquals(altered.getLocation().getName(), updated.getLocation().getName());
+		Assertions.assertEquals(altered.getTerm().getCode(), updated.getTerm().getCode());
+		Assertions.assertEquals(dbAltered.getEngine(), bpRepository.findOneExpected(dbAltered.getId()).getEngine());
+	}
+
+	@Test
+	void installPurgeRetired() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var expected = snapshot();
+		Assertions.assertTrue(expected.containsKey("instance/europe-north/payg/linux-a1-basic"));
+
+		// A SKU is no more in the catalog
+		final var catalog = readCatalog("virtual-machines");
+		((Map<?, ?>) catalog.get("skus")).remove("linux-a1-basic");
+		mockCatalog("/virtual-machines/calculator/", catalog);
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+
+		// Only the prices of this SKU are purged, from their projection
+		final var retired = expected.keySet().stream()
+				.filter(c -> c.startsWith("instance/") && c.endsWith("/linux-a1-basic")).toList();
+		Assertions.assertTrue(retired.contains("instance/europe-north/spot/linux-a1-basic"));
+		expected.keySet().removeAll(retired);
+		Assertions.assertEquals(expected, snapshot());
+		Assertions.assertEquals(retired.size(), resource.getLastMetrics().get("instance-" + ImportMetrics.PURGED));
+		Assertions.assertEquals(0, resource.getLastMetrics().get("instance-" + ImportMetrics.INSERTED));
+	}
+
+	@Test
+	void installEvicted() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var expected = snapshot();
+		final var types = itRepository.count();
+
+		// Clear the persistence context every few prices, the shared entities are attached again
+		configuration.put(AzurePriceImport.CONF_BATCH_SIZE, "2");
+		configuration.put(AzurePriceImport.CONF_EVICT_SIZE, "5");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(expected, snapshot());
+		Assertions.assertTrue(resource.getLastMetrics().get("evictions") > 1);
+		Assertions.assertEquals(types, itRepository.count());
+		Assertions.assertEquals(25, resource.getImportCatalogResource().getTask("service:prov:azure").getDone());
+	}
+
+	@Test
+	void installEvictedReleased() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var expected = fullSnapshot();
+		final var storages = spRepository.count();
+
+		// After each eviction, neither the context nor the persistence context retains a written price
+		final var written = new ArrayList<Long>();
+		setTransactions(new ImportTransactions() {
+			@Override
+			public void evict(final UpdateContext context) {
+				super.evict(context);
+				var count = countWritten(context, context.getPrevious())
+						+ countWritten(context, context.getPreviousDatabase())
+						+ countWritten(context, context.getPreviousStorage());
+				if (context.getPreviousStorages() != null) {
+					for (final var prices : context.getPreviousStorages().values()) {
+						count += countWritten(context, prices);
+					}
+				}
+				written.add(count);
+				written.add(em.unwrap(Session.class).getStatistics().getEntityKeys().stream()
+						.filter(k -> k.getEntityName().endsWith("Price")).count());
+			}
+		});
+		configuration.put(AzurePriceImport.CONF_BATCH_SIZE, "2");
+		configuration.put(AzurePriceImport.CONF_EVICT_SIZE, "5");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertTrue(written.size() > 2);
+		Assertions.assertTrue(written.stream().allMatch(c -> c == 0));
+		Assertions.assertTrue(resource.getLastMetrics().get("released") > 0);
+
+		// The prices written again after their release, such as the storage prices shared by the database engines, are
+		// updated, not inserted twice
+		Assertions.assertEquals(expected, fullSnapshot());
+		Assertions.assertEquals(storages, spRepository.count());
+	}
+
+	@Test
+	void installPhaseEvicted() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var expected = snapshot();
+
+		// The phases are committed in the transaction of this test
+		final var transactions = mockTransactions();
+		configuration.put(AzurePriceImport.CONF_PHASE_TRANSACTION, "true");
+		configuration.put(AzurePriceImport.CONF_EVICT_SIZE, "10");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(expected, snapshot());
+
+		// One transaction per phase: VM, 4 database engines and disk, the evictions commit nothing
+		Assertions.assertTrue(resource.getLastMetrics().get("evictions") > 6);
+		Mockito.verify(transactions, Mockito.times(6)).getTransaction(Mockito.any());
+		Mockito.verify(transactions, Mockito.times(6)).commit(Mockito.any());
+		Mockito.verify(transactions, Mockito.never()).rollback(Mockito.any());
+	}
+
+	@Test
+	void installFresh() throws Exception {
+		// First install with the persistence context, the lifecycle callbacks of the prices are run
+		mockServer();
+		configuration.put(AzurePriceImport.CONF_STATELESS_INSERT, "false");
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var persisted = fullSnapshot();
+		ipRepository.deleteAll();
+		bpRepository.deleteAll();
+		spRepository.deleteAll();
+		forgetCatalogs();
+		em.clear();
+
+		// Same first install, the prices are inserted without the persistence context with the same columns
+		configuration.delete(AzurePriceImport.CONF_STATELESS_INSERT);
+		resetImportTask();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(persisted, fullSnapshot());
+		Assertions.assertTrue(resource.getLastMetrics().get("instance-" + ImportMetrics.INSERTED) > 0);
+		final var inserted = snapshot();
+		final var ids = ipRepository.findAll().stream().map(ProvInstancePrice::getId).sorted().toList();
+		Assertions.assertFalse(ids.isEmpty());
+
+		// The same prices are found by the diff of the next import
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(inserted, snapshot());
+		Assertions.assertEquals(ids, ipRepository.findAll().stream().map(ProvInstancePrice::getId).sorted().toList());
+	}
+
+	@Test
+	void installStaged() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var expected = snapshot();
+		final var price = ipRepository.findBy("code", "europe-north/payg/linux-a1-basic");
+		price.setCost(1d);
+		em.flush();
+		em.clear();
+
+		// The publication runs in the transaction of this test
+		final var transactions = mockTransactions();
+		configuration.put(AzurePriceImport.CONF_STAGED, "true");
+
+		// An invalid catalog is detected before the first write
+		httpServer.stubFor(get(urlEqualTo("/sql-database/calculator/"))
+				.willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("{\"offers\":")));
+		resetImportTask();
+		Assertions.assertThrows(IOException.class, () -> resource.install(true));
+		Mockito.verify(transactions, Mockito.never()).getTransaction(Mockito.any());
+		Assertions.assertEquals(1d, ipRepository.findBy("code", "europe-north/payg/linux-a1-basic").getCost());
+
+		// All catalogs are valid, the prices are published at once
+		mockResource("/sql-database/calculator/", "sql-database");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(expected, snapshot());
+		Mockito.verify(transactions).getTransaction(Mockito.any());
+		Mockito.verify(transactions).commit(Mockito.any());
+	}
+
+	@Test
+	void installStagedEvicted() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		final var expected = snapshot();
+
+		// The evictions would release the published prices before the commit, they are ignored
+		final var transactions = mockTransactions();
+		configuration.put(AzurePriceImport.CONF_STAGED, "true");
+		configuration.put(AzurePriceImport.CONF_EVICT_SIZE, "5");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		Assertions.assertEquals(expected, snapshot());
+		Assertions.assertEquals(0, resource.getLastMetrics().get("evictions"));
+		Mockito.verify(transactions).getTransaction(Mockito.any());
+		Mockito.verify(transactions).commit(Mockito.any());
+	}
+
+	@Test
+	void installMetrics() throws Exception {
+		mockServer();
+		resource.install(false);
+		em.flush();
+		em.clear();
+		var metrics = resource.getLastMetrics();
+		Assertions.assertTrue(metrics.getDurations().containsKey("vm-initialize"));
+		Assertions.assertTrue(metrics.getDurations().containsKey("disk-initialize"));
+		Assertions.assertTrue(metrics.get("instance-" + ImportMetrics.INSERTED) > 0);
+		Assertions.assertTrue(metrics.get("database-" + ImportMetrics.INSERTED) > 0);
+		Assertions.assertTrue(metrics.get("storage-" + ImportMetrics.INSERTED) > 0);
+		Assertions.assertEquals(0, metrics.get("instance-" + ImportMetrics.PURGED));
+		Assertions.assertTrue(metrics.get("instance-skus") > 0);
+		Assertions.assertTrue(metrics.get("regions") > 0);
+		Assertions.assertFalse(metrics.getPayloads().isEmpty());
+		Assertions.assertTrue(metrics.getPayloads().values().stream()
+				.allMatch(p -> p.getBytes() > 0 && p.getWireBytes() > 0));
+
+		// Purge the other regions
+		configuration.put(AzurePriceImportBase.CONF_REGIONS, "europe-north");
+		resetImportTask();
+		resource.install(true);
+		em.flush();
+		em.clear();
+		metrics = resource.getLastMetrics();
+		Assertions.assertEquals(0, metrics.get("instance-" + ImportMetrics.INSERTED));
+		Assertions.assertTrue(metrics.get("instance-" + ImportMetrics.UPDATED) > 0);
+		Assertions.assertTrue(metrics.get("instance-" + ImportMetrics.PURGED) > 0);
+	}
+
+	/**
+	 * Return all the attributes of the installed prices but their identifier. The associations are compared by their
+	 * identifier.
+	 */
+	private Map<String, String> fullSnapshot() {
+		final var prices = new TreeMap<String, String>();
+		fullSnapshot(prices, ProvInstancePrice.class);
+		fullSnapshot(prices, ProvDatabasePrice.class);
+		fullSnapshot(prices, ProvStoragePrice.class);
+		return prices;
+	}
+
+	private <T extends AbstractPrice<?>> void fullSnapshot(final Map<String, String> prices, final Class<T> type) {
+		final var attributes = em.getMetamodel().entity(type).getSingularAttributes().stream().filter(a -> !a.isId())
+				.sorted(Comparator.comparing(Attribute::getName)).toList();
+		em.createQuery("FROM " + type.getSimpleName(), type).getResultList()
+				.forEach(p -> prices.put(type.getSimpleName() + "/" + p.getCode(), attributes.stream()
+						.map(a -> a.getName() + "=" + toValue(p, a)).collect(Collectors.joining(","))));
+	}
+
+	private Object toValue(final Object entity, final Attribute<?, ?> attribute) {
+		final var field = (Field) attribute.getJavaMember();
+		field.setAccessible(true);
+		try {
+			final var value = field.get(entity);
+			return value instanceof Persistable<?> p ? p.getId() : value;
+		} catch (final IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Replace the transactions of the importers by a mock joining the transaction of the test.
+	 *
+	 * @return The mocked transaction manager.
+	 */
+	private PlatformTransactionManager mockTransactions() {
+		final var manager = Mockito.mock(PlatformTransactionManager.class);
+		Mockito.when(manager.getTransaction(Mockito.any())).thenAnswer(i -> new SimpleTransactionStatus());
+		final var transactions = new ImportTransactions();
+		setTransactions(transactions);
+		ReflectionTestUtils.setField(transactions, "transactionManager", manager);
+		return manager;
+	}
+
+	/**
+	 * Replace the transactions of the importers.
+	 */
+	private void setTransactions(final ImportTransactions transactions) {
+		applicationContext.getAutowireCapableBeanFactory().autowireBean(transactions);
+		ReflectionTestUtils.setField(resource, "transactions", transactions);
+		for (final var name : new String[] { "base", "vm", "database", "disk" }) {
+			ReflectionTestUtils.setField(ReflectionTestUtils.getField(resource, name), "transactions", transactions);
+		}
+	}
+
+	/**
+	 * Return the amount of previous prices already written by the import.
+	 */
+	private long countWritten(final UpdateContext context, final Map<?, ? extends AbstractPrice<?>> previous) {
+		return previous == null ? 0
+				: previous.values().stream().filter(p -> context.getPrices().contains(p.getCode())).count();
+	}
+
+	/**
+	 * Forget the applied catalogs and their SKU fingerprints, so the next import installs again all catalogs even
+	 * without change.
+	 */
+	private void forgetCatalogs() {
+		for (final var name : new String[] { "virtual-machines", "managed-disks", "mysql", "postgresql", "mariadb",
+				"sql-database" }) {
+			configuration.delete(AbstractAzureImport.CONF_CATALOG_STATE + name);
+		}
+		fingerprintRepository.deleteAll();
+		em.flush();
+	}
+
+	/**
+	 * Return the installed prices: code and costs.
+	 */
+	private Map<String, String> snapshot() {
+		final var prices = new TreeMap<String, String>();
+		ipRepository.findAll().forEach(p -> prices.put("instance/" + p.getCode(), p.getCost() + "/" + p.getCostPeriod()));
+		bpRepository.findAll().forEach(p -> prices.put("database/" + p.getCode(), p.getCost() + "/" + p.getCostPeriod()));
+		spRepository.findAll().forEach(p -> prices.put("storage/" + p.getCode(),
+				p.getCost() + "/" + p.getCostGb() + "/" + p.getCostTransaction()));
+		return prices;
+	}
+
 	private void checkImportStatus(final int nbTypes) {
 		final var status = this.resource.getImportCatalogResource().getTask("service:prov:azure");
 		Assertions.assertEquals(25, status.getDone());
@@ -385,6 +1522,38 @@ class ProvAzurePriceImportTest extends AbstractServerTest {
 		httpServer.start();
 	}
 
+	/**
+	 * Return the payload of the catalog URL containing the given path.
+	 */
+	private ImportMetrics.Payload getPayload(final ImportMetrics metrics, final String path) {
+		return metrics.getPayloads().entrySet().stream().filter(e -> e.getKey().contains(path)).findFirst()
+				.orElseThrow().getValue();
+	}
+
+	/**
+	 * Return the content of a mocked catalog, the properties are kept in their order.
+	 */
+	private Map<String, Object> readCatalog(final String json) throws IOException {
+		return MAPPER.readValue(new ClassPathResource("mock-server/azure/" + json + ".json").getInputStream(),
+				new TypeReference<LinkedHashMap<String, Object>>() {
+					// Nothing to extend
+				});
+	}
+
+	/**
+	 * Return the VM catalog content with the same prices, but the SKUs after all other properties.
+	 */
+	private Map<String, Object> readSkusLast() throws IOException {
+		final var catalog = readCatalog("virtual-machines");
+		catalog.put("skus", catalog.remove("skus"));
+		return catalog;
+	}
+
+	private void mockCatalog(final String path, final Map<String, Object> catalog) throws IOException {
+		httpServer.stubFor(get(urlEqualTo(path))
+				.willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody(MAPPER.writeValueAsString(catalog))));
+	}
+
 	private void mockResource(final String path, final String json) throws IOException {
 		httpServer.stubFor(get(urlEqualTo(path)).willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody(IOUtils
 				.toString(new ClassPathResource("mock-server/azure/" + json + ".json").getInputStream(), StandardCharsets.UTF_8))));